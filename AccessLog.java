@@ -0,0 +1,221 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Access log written off the request path. Handler threads claim a slot in a bounded ring buffer
+// with a single CAS and fill in the preallocated entry, a background thread drains whole batches,
+// formats them and writes them to the log file with one flush per batch. The file is rolled once it
+// exceeds maxBytes, keeping maxFiles old files as access.log.1 (newest) to access.log.<maxFiles>.
+// When the writer falls behind and the ring is full, entries are dropped and counted instead of
+// making the handler threads wait.
+public class AccessLog {
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final long maxBytes;
+    private final int maxFiles;
+
+    private final Entry[] ring;
+    // sequence numbers of the slots: equal to the claiming position when the slot is free,
+    // position + 1 once it was published and position + capacity after the writer consumed it
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writerThread;
+    private volatile boolean running = true;
+    private BufferedWriter writer;
+    private long fileBytes;
+    // the last roll failed and was reported
+    private boolean rollFailed;
+
+    private static class Entry {
+        private long timestamp;
+        private String remoteAddress;
+        private String method;
+        private String path;
+        private int status;
+        private long bytes;
+        private long durationNanos;
+    }
+
+    // capacity is rounded up to a power of two
+    public AccessLog(String path, int capacity, long maxBytes, int maxFiles) throws IOException {
+        this.file = new File(path);
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new Entry[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Entry();
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        openFile();
+        this.writerThread = new Thread(this::drainLoop, "access-log-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    // called on the request path, never blocks
+    public void log(String remoteAddress, String method, String path, int status, long bytes, long durationNanos) {
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) (position & mask);
+            long sequence = sequences.get(index);
+            if (sequence < position) {
+                // the writer has not consumed this slot yet, the ring is full
+                dropped.increment();
+                return;
+            }
+            if (sequence == position && tail.compareAndSet(position, position + 1)) {
+                break;
+            }
+        }
+        Entry entry = ring[index];
+        entry.timestamp = System.currentTimeMillis();
+        entry.remoteAddress = remoteAddress;
+        entry.method = method;
+        entry.path = path;
+        entry.status = status;
+        entry.bytes = bytes;
+        entry.durationNanos = durationNanos;
+        sequences.set(index, position + 1);
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    // stops the writer after it has written every published entry
+    public void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop() {
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            boolean stopping = !running;
+            int drained = 0;
+            try {
+                drained = drainBatch(line);
+                if (drained > 0) {
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                System.err.println("Could not write the access log: " + e.getMessage());
+            }
+            if (stopping && drained == 0) {
+                break;
+            }
+            if (drained == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.err.println("Could not close the access log: " + e.getMessage());
+        }
+    }
+
+    // writes every entry published so far, up to one pass over the ring
+    private int drainBatch(StringBuilder line) throws IOException {
+        int drained = 0;
+        while (drained < ring.length) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            Entry entry = ring[index];
+            line.setLength(0);
+            DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(entry.timestamp), line);
+            line.append(' ').append(entry.remoteAddress)
+                    .append(' ').append(entry.method)
+                    .append(' ').append(entry.path)
+                    .append(' ').append(entry.status)
+                    .append(' ').append(entry.bytes)
+                    .append(' ').append(entry.durationNanos / 1000).append("us\n");
+            entry.remoteAddress = null;
+            entry.method = null;
+            entry.path = null;
+            sequences.set(index, head + ring.length);
+            head++;
+            drained++;
+
+            writer.append(line);
+            fileBytes += line.length();
+            if (fileBytes >= maxBytes) {
+                roll();
+            }
+        }
+        return drained;
+    }
+
+    // Starts a new file. When the old files cannot be moved, e.g. for lack of permissions, the current
+    // file is reopened and written on, and the roll is tried again after another maxBytes; the failure
+    // is reported once until a roll succeeds.
+    private void roll() throws IOException {
+        writer.close();
+        try {
+            shiftFiles();
+            rollFailed = false;
+        } catch (IOException e) {
+            if (!rollFailed) {
+                System.err.println("Could not roll the access log, writing on to " + file + ": " + e.getMessage());
+                rollFailed = true;
+            }
+        } finally {
+            openFile();
+        }
+        if (rollFailed) {
+            fileBytes = 0;
+        }
+    }
+
+    // access.log.<i> becomes access.log.<i + 1> and access.log becomes access.log.1, the oldest is deleted
+    private void shiftFiles() throws IOException {
+        File oldest = new File(file.getPath() + "." + maxFiles);
+        if (oldest.exists() && !oldest.delete()) {
+            throw new IOException("Could not delete " + oldest);
+        }
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File older = new File(file.getPath() + "." + i);
+            if (older.exists() && !older.renameTo(new File(file.getPath() + "." + (i + 1)))) {
+                throw new IOException("Could not rename " + older);
+            }
+        }
+        if (maxFiles > 0 ? !file.renameTo(new File(file.getPath() + ".1")) : !file.delete()) {
+            throw new IOException("Could not move " + file + " aside");
+        }
+    }
+
+    private void openFile() throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        writer = new BufferedWriter(new FileWriter(file, true), WRITE_BUFFER_SIZE);
+        fileBytes = file.length();
+    }
+}
@@ -0,0 +1,308 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+// Load scenarios against a server running on loopback, run with: java Benchmarks <scenario> [options]
+// The in-process benchmarks of the hot path are JMH benchmarks under jmh/.
+public class Benchmarks {
+    private static final int CLOSED = 0;
+    private static final int KEEP_ALIVE = 1;
+    private static final int LAST_RESPONSE = 2;
+
+    public static void main(String[] args) throws Exception {
+        String scenario = args.length > 0 ? args[0] : "";
+        switch (scenario) {
+            case "slowclients" -> clients(plain(arg(args, 1, "localhost"), Integer.parseInt(arg(args, 2, "8080"))), arg(args, 1, "localhost"),
+                    Integer.parseInt(arg(args, 3, "1000")), Integer.parseInt(arg(args, 4, "10")), 100, "/index.html", false);
+            case "connections" -> clients(plain(arg(args, 1, "localhost"), Integer.parseInt(arg(args, 2, "8080"))), arg(args, 1, "localhost"),
+                    Integer.parseInt(arg(args, 3, "64")), Integer.parseInt(arg(args, 4, "10")), 0, arg(args, 5, "/favicon.ico"), true);
+            case "tls" -> tls(arg(args, 1, "localhost"), Integer.parseInt(arg(args, 2, "8443")), Integer.parseInt(arg(args, 3, "16")),
+                    Integer.parseInt(arg(args, 4, "10")), arg(args, 5, "/index.html"));
+            case "page" -> page(arg(args, 1, "localhost"), Integer.parseInt(arg(args, 2, "8080")), Integer.parseInt(arg(args, 3, "16")),
+                    Integer.parseInt(arg(args, 4, "10")), arg(args, 5, "http"));
+            default -> {
+                System.out.println("usage: java Benchmarks <scenario> [options]");
+                System.out.println("  slowclients [host] [port] [clients] [seconds]        keep-alive clients with think time against a running server");
+                System.out.println("  connections [host] [port] [clients] [seconds] [path] a new connection per request, to load the acceptors");
+                System.out.println("  tls [host] [tlsPort] [clients] [seconds] [path]       HTTPS handshake rate without and with resumption, and throughput");
+                System.out.println("  page [host] [port] [clients] [seconds] [scheme]       index.html and its images over HTTP/1.1 and over HTTP/2");
+            }
+        }
+    }
+
+    private static String arg(String[] args, int index, String defaultValue) {
+        return args.length > index ? args[index] : defaultValue;
+    }
+
+    // opens a client connection
+    private interface Connector {
+        Socket connect() throws IOException;
+    }
+
+    private static Connector plain(String host, int port) {
+        return () -> new Socket(host, port);
+    }
+
+    // HTTPS against a server with tlsPort set. A new connection per request, first with the client's
+    // cached sessions invalidated before each one so every handshake is a full one, then with the
+    // session cache left alone so the client resumes; then keep-alive connections, where the
+    // handshake is amortized. Like separate browsers every client has its own SSLContext, since a
+    // TLS 1.3 session ticket is only used once. Start the server with maxConnectionsPerClient = 0.
+    private static void tls(String host, int port, int clients, int seconds, String path) throws Exception {
+        ThreadLocal<SSLContext> forgetful = ThreadLocal.withInitial(Benchmarks::clientContext);
+        System.out.println("-- full handshake per request");
+        clients(() -> {
+            SSLSessionContext sessions = forgetful.get().getClientSessionContext();
+            for (Enumeration<byte[]> ids = sessions.getIds(); ids.hasMoreElements(); ) {
+                SSLSession session = sessions.getSession(ids.nextElement());
+                if (session != null) {
+                    session.invalidate();
+                }
+            }
+            return tlsSocket(forgetful.get(), host, port);
+        }, host, clients, seconds, 0, path, true);
+        ThreadLocal<SSLContext> resuming = ThreadLocal.withInitial(Benchmarks::clientContext);
+        System.out.println("-- resumed session per request");
+        clients(() -> tlsSocket(resuming.get(), host, port), host, clients, seconds, 0, path, true);
+        System.out.println("-- keep-alive");
+        clients(() -> tlsSocket(resuming.get(), host, port), host, clients, seconds, 0, path, false);
+    }
+
+    // the handshake starts with the first write, after Nagle is turned off like browsers do
+    private static Socket tlsSocket(SSLContext context, String host, int port) throws IOException {
+        Socket socket = context.getSocketFactory().createSocket(host, port);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    // trusts any certificate, the server's is usually self-signed when benchmarking
+    private static final TrustManager[] TRUST_ALL = {new X509TrustManager() {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }};
+
+    private static SSLContext clientContext() {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, TRUST_ALL, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // the files html/index.html references, fetched after it like a browser would
+    private static final List<String> PAGE_RESOURCES = List.of("/favicon.ico", "/alice.png", "/bob1.png");
+
+    // Page loads: index.html, then the files it references. Three ways, each client with its own
+    // HttpClient like separate browsers: HTTP/1.1 fetching one file at a time on one connection,
+    // HTTP/1.1 fetching the files in parallel on extra connections, and HTTP/2 multiplexing them on
+    // one connection. Over http the client switches with Upgrade: h2c, over https ALPN picks h2, so
+    // pass the tlsPort with scheme https. Latency is for the whole page.
+    private static void page(String host, int port, int clients, int seconds, String scheme) throws InterruptedException {
+        // the server's certificate is usually self-signed and issued for some other name
+        System.setProperty("jdk.internal.httpclient.disableHostnameVerification", "true");
+        URI base = URI.create(scheme + "://" + host + ":" + port);
+        System.out.println("-- HTTP/1.1, one request at a time");
+        pages(base, HttpClient.Version.HTTP_1_1, false, clients, seconds);
+        System.out.println("-- HTTP/1.1, images in parallel");
+        pages(base, HttpClient.Version.HTTP_1_1, true, clients, seconds);
+        System.out.println("-- HTTP/2, images multiplexed");
+        pages(base, HttpClient.Version.HTTP_2, true, clients, seconds);
+    }
+
+    private static void pages(URI base, HttpClient.Version version, boolean parallel, int clients, int seconds) throws InterruptedException {
+        LatencyHistogram latencies = new LatencyHistogram();
+        AtomicLong failed = new AtomicLong();
+        AtomicLong http2 = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        ExecutorService clientThreads = Executors.newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < clients; i++) {
+            clientThreads.execute(() -> {
+                try (HttpClient client = HttpClient.newBuilder().version(version).sslContext(clientContext()).build()) {
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        try {
+                            List<HttpResponse<Void>> responses = new ArrayList<>();
+                            responses.add(client.send(pageRequest(base, "/index.html"), HttpResponse.BodyHandlers.discarding()));
+                            if (parallel) {
+                                List<CompletableFuture<HttpResponse<Void>>> pending = PAGE_RESOURCES.stream()
+                                        .map(path -> client.sendAsync(pageRequest(base, path), HttpResponse.BodyHandlers.discarding()))
+                                        .toList();
+                                for (CompletableFuture<HttpResponse<Void>> response : pending) {
+                                    responses.add(response.join());
+                                }
+                            } else {
+                                for (String path : PAGE_RESOURCES) {
+                                    responses.add(client.send(pageRequest(base, path), HttpResponse.BodyHandlers.discarding()));
+                                }
+                            }
+                            if (responses.stream().anyMatch(response -> response.statusCode() != 200)) {
+                                failed.incrementAndGet();
+                                continue;
+                            }
+                            latencies.record(System.nanoTime() - start);
+                            if (responses.get(0).version() == HttpClient.Version.HTTP_2) {
+                                http2.incrementAndGet();
+                            }
+                        } catch (IOException | CompletionException e) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // the benchmark is over
+                }
+            });
+        }
+        clientThreads.shutdown();
+        clientThreads.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+
+        long done = latencies.getCount();
+        System.out.println("clients:       " + clients);
+        System.out.println("pages:         " + done + (done > 0 ? " (" + http2.get() + " over HTTP/2)" : ""));
+        System.out.println("failed:        " + failed.get());
+        System.out.printf("throughput:    %.1f pages/s%n", done / (double) seconds);
+        System.out.printf("mean latency:  %.3f ms%n", latencies.getMean() / 1_000_000);
+        System.out.printf("p99 latency:   %.3f ms%n", latencies.getValueAtPercentile(99) / 1_000_000.0);
+    }
+
+    private static HttpRequest pageRequest(URI base, String path) {
+        return HttpRequest.newBuilder(base.resolve(path)).build();
+    }
+
+    // Each client keeps its connection open and sends requests back to back, or with think time
+    // between them like a browser, in which case a handler thread is held for the whole session.
+    // slowclients is meant to be run once against executor = pool and once against executor = virtual.
+    // connections closes the connection after every response, so each request goes through accept;
+    // it is meant to compare acceptors = 1 with acceptors = N on servers pinned to 1, 4 and 16 cores.
+    private static void clients(Connector connector, String host, int clients, int seconds, int thinkTime, String path,
+                                boolean connectionPerRequest) throws InterruptedException {
+        AtomicLong completed = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        AtomicLong totalLatency = new AtomicLong();
+        AtomicLong handshakes = new AtomicLong();
+        AtomicLong resumed = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\n" + (connectionPerRequest ? "Connection: close\r\n" : "")
+                + "\r\n").getBytes(StandardCharsets.UTF_8);
+
+        ExecutorService clientThreads = Executors.newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < clients; i++) {
+            clientThreads.execute(() -> {
+                while (System.nanoTime() < deadline) {
+                    long opened = System.currentTimeMillis();
+                    try (Socket socket = connector.connect()) {
+                        OutputStream out = socket.getOutputStream();
+                        InputStream in = new BufferedInputStream(socket.getInputStream());
+                        while (System.nanoTime() < deadline) {
+                            long start = System.nanoTime();
+                            out.write(request);
+                            out.flush();
+                            int response = readResponse(in);
+                            if (response == CLOSED) {
+                                break;
+                            }
+                            if (socket instanceof SSLSocket sslSocket && opened != 0) {
+                                // a resumed session keeps the creation time of the one it resumes
+                                handshakes.incrementAndGet();
+                                if (sslSocket.getSession().getCreationTime() < opened) {
+                                    resumed.incrementAndGet();
+                                }
+                                opened = 0;
+                            }
+                            completed.incrementAndGet();
+                            totalLatency.addAndGet(System.nanoTime() - start);
+                            if (response == LAST_RESPONSE || connectionPerRequest) {
+                                break;
+                            }
+                            if (thinkTime > 0) {
+                                Thread.sleep(thinkTime);
+                            }
+                        }
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+        }
+        clientThreads.shutdown();
+        clientThreads.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+
+        long done = completed.get();
+        System.out.println("clients:       " + clients);
+        System.out.println("completed:     " + done);
+        System.out.println("failed:        " + failed.get());
+        System.out.printf("throughput:    %.1f req/s%n", done / (double) seconds);
+        System.out.printf("mean latency:  %.3f ms%n", done == 0 ? 0.0 : totalLatency.get() / (double) done / 1_000_000);
+        if (handshakes.get() > 0) {
+            System.out.printf("handshakes:    %d, %.1f/s, %d resumed%n", handshakes.get(), handshakes.get() / (double) seconds, resumed.get());
+        }
+    }
+
+    // Reads one Content-Length framed response. Returns CLOSED when the connection was closed before
+    // it, LAST_RESPONSE when the server closes the connection after it and KEEP_ALIVE otherwise.
+    private static int readResponse(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int contentLength = 0;
+        boolean keepAlive = true;
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                String header = line.toString().strip();
+                if (header.isEmpty()) {
+                    break;
+                }
+                if (header.startsWith("Content-Length:")) {
+                    contentLength = Integer.parseInt(header.substring("Content-Length:".length()).strip());
+                } else if (header.equals("Connection: close")) {
+                    keepAlive = false;
+                }
+                line.setLength(0);
+            } else {
+                line.append((char) b);
+            }
+        }
+        if (b < 0) {
+            return CLOSED;
+        }
+        in.skipNBytes(contentLength);
+        return keepAlive ? KEEP_ALIVE : LAST_RESPONSE;
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// Chunked transfer coding over another stream. Data is collected in a buffer with room left in
+// front for the size line and behind it for the CRLF, so every chunk leaves as one write of
+// "<hex size>\r\n<data>\r\n" without copying or allocating per chunk. finish() writes the last chunk
+// and the trailer fields, the underlying stream is left open for the next response.
+public class ChunkedOutputStream extends OutputStream {
+    // up to 8 hex digits and CRLF
+    private static final int SIZE_LINE_ROOM = 10;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private final int chunkSize;
+    private int count;
+    private boolean finished;
+
+    public ChunkedOutputStream(OutputStream out, int chunkSize) {
+        this.out = out;
+        this.chunkSize = chunkSize;
+        this.buffer = new byte[SIZE_LINE_ROOM + chunkSize + 2];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == chunkSize) {
+            writeChunk();
+        }
+        buffer[SIZE_LINE_ROOM + count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == chunkSize) {
+                writeChunk();
+            }
+            int copied = Math.min(length, chunkSize - count);
+            System.arraycopy(bytes, offset, buffer, SIZE_LINE_ROOM + count, copied);
+            count += copied;
+            offset += copied;
+            length -= copied;
+        }
+    }
+
+    // sends the buffered data as a chunk, the last chunk is only written by finish
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            writeChunk();
+        }
+        out.flush();
+    }
+
+    // ends the body with the zero size chunk and the trailer fields, if any
+    public void finish(Map<String, String> trailers) throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (count > 0) {
+            writeChunk();
+        }
+        StringBuilder end = new StringBuilder("0\r\n");
+        if (trailers != null) {
+            for (Map.Entry<String, String> trailer : trailers.entrySet()) {
+                end.append(trailer.getKey()).append(": ").append(trailer.getValue()).append("\r\n");
+            }
+        }
+        end.append("\r\n");
+        out.write(end.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish(null);
+    }
+
+    private void writeChunk() throws IOException {
+        int start = SIZE_LINE_ROOM - 2;
+        buffer[start] = '\r';
+        buffer[start + 1] = '\n';
+        int size = count;
+        do {
+            buffer[--start] = HEX_DIGITS[size & 0xf];
+            size >>>= 4;
+        } while (size != 0);
+        int end = SIZE_LINE_ROOM + count;
+        buffer[end] = '\r';
+        buffer[end + 1] = '\n';
+        out.write(buffer, start, end + 2 - start);
+        count = 0;
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+// Watches a file's directory with a WatchService and runs a callback when the file is written or
+// replaced. Editors save in several steps (truncate, write, rename), so events are collected until
+// the directory has been quiet for QUIET_PERIOD and the callback runs once per save.
+public class ConfigWatcher {
+    private static final long QUIET_PERIOD = 200;
+
+    private final Path file;
+    private final Runnable onChange;
+    private final WatchService watchService;
+
+    public ConfigWatcher(Path file, Runnable onChange) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.onChange = onChange;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::watch, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // the watcher thread stops either way
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                boolean changed = drain(watchService.take());
+                WatchKey next;
+                while ((next = watchService.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= drain(next);
+                }
+                if (changed) {
+                    onChange.run();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    // true when one of the key's events is about the watched file
+    private boolean drain(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
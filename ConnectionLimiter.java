@@ -0,0 +1,48 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Admission control for new connections: a cap on the connections open at once and on the
+// connections a single client address may hold, so one client cannot take every worker.
+// A limit of 0 means unlimited.
+public class ConnectionLimiter {
+    private final int maxConnections;
+    private final int maxPerClient;
+    private final AtomicInteger open = new AtomicInteger();
+    private final ConcurrentHashMap<String, Integer> perClient = new ConcurrentHashMap<>();
+
+    public ConnectionLimiter(int maxConnections, int maxPerClient) {
+        this.maxConnections = maxConnections;
+        this.maxPerClient = maxPerClient;
+    }
+
+    // takes a slot for the address, every successful call must be paired with release
+    public boolean tryAcquire(String address) {
+        if (open.incrementAndGet() > maxConnections && maxConnections > 0) {
+            open.decrementAndGet();
+            return false;
+        }
+        if (maxPerClient > 0) {
+            boolean[] admitted = new boolean[1];
+            perClient.compute(address, (key, count) -> {
+                int current = count == null ? 0 : count;
+                if (current >= maxPerClient) {
+                    return count;
+                }
+                admitted[0] = true;
+                return current + 1;
+            });
+            if (!admitted[0]) {
+                open.decrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void release(String address) {
+        if (maxPerClient > 0) {
+            perClient.computeIfPresent(address, (key, count) -> count == 1 ? null : count - 1);
+        }
+        open.decrementAndGet();
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Content negotiation and compression for response bodies. Only gzip and deflate are offered,
+// gzip is preferred when the client weighs both the same.
+public class ContentEncoding {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private ContentEncoding() {
+    }
+
+    // picks the coding to send for an Accept-Encoding header value, null means the identity coding
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return null;
+        }
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String coding = parts[0].strip().toLowerCase();
+            double quality = 1.0;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].strip();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            switch (coding) {
+                case "gzip", "x-gzip" -> gzip = Math.max(gzip, quality);
+                case "deflate" -> deflate = Math.max(deflate, quality);
+                case "*" -> any = quality;
+                default -> {
+                }
+            }
+        }
+        // codings not listed by name are covered by a wildcard
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    // images, archives and the like are already compressed and only grow when compressed again
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        return contentType.startsWith("text/") || contentType.startsWith("application/json") || contentType.startsWith("application/javascript")
+                || contentType.startsWith("application/xml") || contentType.startsWith("image/svg+xml");
+    }
+
+    public static byte[] encode(byte[] content, String coding, int level) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 3 + 64);
+        if (coding.equals(GZIP)) {
+            try (GZIPOutputStream out = new GZIPOutputStream(bytes, 8192) {
+                {
+                    def.setLevel(level);
+                }
+            }) {
+                out.write(content);
+            }
+        } else {
+            Deflater deflater = new Deflater(level);
+            try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater, 8192)) {
+                out.write(content);
+            } finally {
+                deflater.end();
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,218 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Shared in-memory cache of static file content keyed by normalized path.
+// Entries are dropped when the file's modification time or size changes, and the least
+// recently used ones are evicted once the cached bytes exceed the configured budget.
+// Compressed variants of an entry are cached with it and count against the same budget.
+public class FileCache {
+    private final long maxBytes;
+    // in access order, the least recently used entry first; guarded by its own lock
+    private final LinkedHashMap<String, Entry> entries;
+    private final AtomicLong cachedBytes;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+    private final LongAdder invalidations;
+
+    public FileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.cachedBytes = new AtomicLong();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+        this.invalidations = new LongAdder();
+    }
+
+    public static class Entry {
+        private final byte[] content;
+        private final String contentType;
+        private final long lastModified;
+        private final long length;
+        private byte[] gzipContent;
+        private byte[] deflateContent;
+        // validators are formatted once per entry
+        private final String etag;
+        private final String gzipETag;
+        private final String deflateETag;
+        private final String lastModifiedHeader;
+        // set once the entry left the cache, variants added later are not counted
+        private boolean removed;
+
+        public Entry(byte[] content, String contentType, long lastModified, long length) {
+            this.content = content;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.etag = Validators.etag(length, lastModified, null);
+            this.gzipETag = Validators.etag(length, lastModified, ContentEncoding.GZIP);
+            this.deflateETag = Validators.etag(length, lastModified, ContentEncoding.DEFLATE);
+            this.lastModifiedHeader = Validators.httpDate(lastModified);
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        // the ETag of the content sent with the given coding, null for the content as it is
+        public String getETag(String coding) {
+            if (coding == null) {
+                return etag;
+            }
+            return coding.equals(ContentEncoding.GZIP) ? gzipETag : deflateETag;
+        }
+
+        public String getLastModifiedHeader() {
+            return lastModifiedHeader;
+        }
+
+        // the content compressed with the given coding, null until it was added
+        public synchronized byte[] getEncoded(String coding) {
+            return coding.equals(ContentEncoding.GZIP) ? gzipContent : deflateContent;
+        }
+
+        // the cached bytes held by the entry, including its compressed variants
+        private synchronized long size() {
+            return content.length + (gzipContent == null ? 0 : gzipContent.length) + (deflateContent == null ? 0 : deflateContent.length);
+        }
+    }
+
+    // Returns the cached entry for the path, or null when it is missing or the file changed on disk,
+    // checked against the modification time and size the caller already knows, e.g. from the FileIndex.
+    public Entry get(String path, long lastModified, long length) {
+        Entry entry;
+        synchronized (entries) {
+            // a hit moves the entry to the end of the access order
+            entry = entries.get(path);
+            if (entry != null && (entry.lastModified != lastModified || entry.length != length)) {
+                entries.remove(path);
+                release(entry);
+                invalidations.increment();
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry;
+    }
+
+    // whether current content for the path is cached, without counting it as a hit or a miss
+    public boolean contains(String path, long lastModified, long length) {
+        synchronized (entries) {
+            Entry entry = entries.get(path);
+            return entry != null && entry.lastModified == lastModified && entry.length == length;
+        }
+    }
+
+    // caches freshly read content, files larger than the whole budget are returned uncached
+    public Entry put(String path, long lastModified, byte[] content, String contentType) {
+        Entry entry = new Entry(content, contentType, lastModified, content.length);
+        if (content.length > maxBytes) {
+            entry.removed = true;
+            return entry;
+        }
+        synchronized (entries) {
+            Entry previous = entries.put(path, entry);
+            cachedBytes.addAndGet(content.length);
+            if (previous != null) {
+                release(previous);
+            }
+            evict();
+        }
+        return entry;
+    }
+
+    // keeps a compressed variant with the entry, returns the variant cached first if another thread won
+    public byte[] putEncoded(Entry entry, String coding, byte[] encoded) {
+        synchronized (entry) {
+            byte[] existing = entry.getEncoded(coding);
+            if (existing != null) {
+                return existing;
+            }
+            if (coding.equals(ContentEncoding.GZIP)) {
+                entry.gzipContent = encoded;
+            } else {
+                entry.deflateContent = encoded;
+            }
+            if (entry.removed) {
+                return encoded;
+            }
+            cachedBytes.addAndGet(encoded.length);
+        }
+        if (cachedBytes.get() > maxBytes) {
+            synchronized (entries) {
+                evict();
+            }
+        }
+        return encoded;
+    }
+
+    private void release(Entry entry) {
+        synchronized (entry) {
+            entry.removed = true;
+            cachedBytes.addAndGet(-entry.size());
+        }
+    }
+
+    // drops entries from the least recently used end until the budget holds, called holding the lock on entries
+    private void evict() {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (cachedBytes.get() > maxBytes && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            release(entry);
+            evictions.increment();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public long getCachedBytes() {
+        return cachedBytes.get();
+    }
+
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public double getHitRate() {
+        long lookups = getHits() + getMisses();
+        return lookups == 0 ? 0.0 : getHits() / (double) lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FileCache: %d entries, %d/%d bytes, hit rate %.3f, %d hits, %d misses, %d evictions, %d invalidations",
+                getSize(), getCachedBytes(), maxBytes, getHitRate(), getHits(), getMisses(), getEvictions(), getInvalidations());
+    }
+}
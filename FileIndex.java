@@ -0,0 +1,289 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Metadata of every regular file under the document root, keyed by the path requests use
+// ("index.html", "images/logo.png"). It is scanned once at startup and kept current by a
+// WatchService, so answering a request takes one hash lookup instead of a regex, exists(),
+// length() and lastModified() calls. The map is immutable and replaced as a whole after each
+// burst of changes, so readers never lock. Paths that leave the root, also through symbolic
+// links, are never in the map.
+public class FileIndex {
+    // changes are applied once the root has been quiet for this long
+    private static final long QUIET_PERIOD = 100;
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+            Map.entry("html", "text/html"),
+            Map.entry("htm", "text/html"),
+            Map.entry("css", "text/css"),
+            Map.entry("js", "text/javascript"),
+            Map.entry("mjs", "text/javascript"),
+            Map.entry("txt", "text/plain"),
+            Map.entry("csv", "text/csv"),
+            Map.entry("json", "application/json"),
+            Map.entry("xml", "application/xml"),
+            Map.entry("pdf", "application/pdf"),
+            Map.entry("wasm", "application/wasm"),
+            Map.entry("zip", "application/zip"),
+            Map.entry("gz", "application/gzip"),
+            Map.entry("png", "image/png"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("bmp", "image/bmp"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("avif", "image/avif"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("woff", "font/woff"),
+            Map.entry("woff2", "font/woff2"),
+            Map.entry("ttf", "font/ttf"),
+            Map.entry("otf", "font/otf"),
+            Map.entry("mp3", "audio/mpeg"),
+            Map.entry("ogg", "audio/ogg"),
+            Map.entry("mp4", "video/mp4"),
+            Map.entry("webm", "video/webm"));
+
+    private final Path root;
+    private final WatchService watchService;
+    // the directory each watch key was registered for
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    private volatile Map<String, Metadata> files;
+
+    public static class Metadata {
+        private final File file;
+        private final String path;
+        private final long length;
+        private final long lastModified;
+        private final String contentType;
+        // validators are formatted once per file
+        private final String etag;
+        private final String lastModifiedHeader;
+
+        private Metadata(File file, long length, long lastModified) {
+            this.file = file;
+            this.path = file.getPath();
+            this.length = length;
+            this.lastModified = lastModified;
+            this.contentType = contentType(file.getName());
+            this.etag = Validators.etag(length, lastModified, null);
+            this.lastModifiedHeader = Validators.httpDate(lastModified);
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        // the file's path, also its key in the FileCache
+        public String getPath() {
+            return path;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public String getLastModifiedHeader() {
+            return lastModifiedHeader;
+        }
+    }
+
+    private FileIndex(Path root) throws IOException {
+        this.root = root.toRealPath();
+        this.watchService = FileSystems.getDefault().newWatchService();
+        HashMap<String, Metadata> scanned = new HashMap<>();
+        scan(this.root, scanned);
+        this.files = Map.copyOf(scanned);
+    }
+
+    // scans the root and starts watching it
+    public static FileIndex open(String root) throws IOException {
+        FileIndex index = new FileIndex(Path.of(root));
+        Thread thread = new Thread(index::watch, "file-index");
+        thread.setDaemon(true);
+        thread.start();
+        return index;
+    }
+
+    // metadata for the file a request path names, null when there is no such file under the root
+    public Metadata get(String requestPath) {
+        return files.get(requestPath);
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // the watcher thread stops either way
+        }
+    }
+
+    // Reads the metadata of a file that is not indexed, null when it is missing, not a regular file or
+    // a symbolic link that resolves outside the root. Used when the index is turned off.
+    public static Metadata stat(File file, String root) {
+        try {
+            return insideRoot(file.toPath(), Path.of(root).toRealPath()) ? stat(file) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Metadata stat(File file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            return attributes.isRegularFile() ? new Metadata(file, attributes.size(), attributes.lastModifiedTime().toMillis()) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // the MIME type for a file name's extension
+    public static String contentType(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return DEFAULT_CONTENT_TYPE;
+        }
+        return CONTENT_TYPES.getOrDefault(name.substring(dot + 1).toLowerCase(), DEFAULT_CONTENT_TYPE);
+    }
+
+    // adds every regular file below start to the map and watches every directory on the way
+    private void scan(Path start, Map<String, Metadata> into) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                directories.put(key, directory);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                index(file, into);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // unreadable entries are left out, like missing ones
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void index(Path file, Map<String, Metadata> into) {
+        Metadata metadata = insideRoot(file, root) ? stat(file.toFile()) : null;
+        if (metadata != null) {
+            into.put(requestPath(file), metadata);
+        }
+    }
+
+    // false for a symbolic link, or a path through one, that resolves outside the real root
+    private static boolean insideRoot(Path file, Path realRoot) {
+        try {
+            return file.toRealPath().startsWith(realRoot);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private String requestPath(Path file) {
+        return root.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                Set<Path> changed = new HashSet<>();
+                boolean overflow = collect(watchService.take(), changed);
+                WatchKey next;
+                while ((next = watchService.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS)) != null) {
+                    overflow |= collect(next, changed);
+                }
+                try {
+                    apply(changed, overflow);
+                } catch (IOException e) {
+                    System.out.println("Something went wrong with the input/output");
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    // adds the paths the key's events name, true when events were lost and a full rescan is needed
+    private boolean collect(WatchKey key, Set<Path> changed) {
+        Path directory = directories.get(key);
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            } else if (directory != null) {
+                changed.add(directory.resolve((Path) event.context()));
+            }
+        }
+        if (!key.reset()) {
+            // the directory itself is gone
+            directories.remove(key);
+        }
+        return overflow;
+    }
+
+    private void apply(Set<Path> changed, boolean overflow) throws IOException {
+        HashMap<String, Metadata> next;
+        if (overflow) {
+            next = new HashMap<>();
+            scan(root, next);
+        } else {
+            next = new HashMap<>(files);
+            for (Path path : changed) {
+                String key = requestPath(path);
+                if (next.remove(key) == null) {
+                    // not a file, a replaced or deleted directory takes everything below it along
+                    String prefix = key + "/";
+                    next.keySet().removeIf(indexed -> indexed.startsWith(prefix));
+                }
+                // like the scan, links to directories are not descended into
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    scan(path, next);
+                } else {
+                    index(path, next);
+                }
+            }
+        }
+        files = Map.copyOf(next);
+    }
+}
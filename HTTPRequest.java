@@ -6,15 +6,27 @@ public class HTTPRequest {
     private String request;
     private String type;
     private String requestedPage;
+    private String version;
     private boolean isImage;
     private int contentLength;
     private String referer;
     private String userAgent;
     private boolean isChunked;
+    private String connection;
+    private String acceptEncoding;
+    private String ifNoneMatch;
+    private String ifModifiedSince;
+    private String range;
+    private String ifRange;
+    private boolean chunkedBody;
+    private String upgrade;
+    private String http2Settings;
     private HashMap<String, String> parameters;
+    private String rawHeader;
 
     public HTTPRequest(String requestHeader, String requestBody) {
         // Parse the HTTP request header
+        rawHeader = requestHeader;
         parseRequestHeader(requestHeader);
         if (requestBody != "") {
             // extract params from body
@@ -22,6 +34,36 @@ public class HTTPRequest {
         }
     }
 
+    // used by HTTPRequestParser, which has already validated the request line and read the headers
+    HTTPRequest(String type, String requestedPage, String version, int contentLength, String referer, String userAgent,
+                boolean isChunked, String connection, String acceptEncoding, String ifNoneMatch, String ifModifiedSince,
+                String range, String ifRange, boolean chunkedBody, String upgrade, String http2Settings, HashMap<String, String> parameters,
+                String rawHeader) {
+        this.type = type;
+        this.requestedPage = requestedPage;
+        this.version = version;
+        this.contentLength = contentLength;
+        this.referer = referer;
+        this.userAgent = userAgent;
+        this.isChunked = isChunked;
+        this.connection = connection;
+        this.acceptEncoding = acceptEncoding;
+        this.ifNoneMatch = ifNoneMatch;
+        this.ifModifiedSince = ifModifiedSince;
+        this.range = range;
+        this.ifRange = ifRange;
+        this.chunkedBody = chunkedBody;
+        this.upgrade = upgrade;
+        this.http2Settings = http2Settings;
+        this.parameters = parameters;
+        this.rawHeader = rawHeader;
+        this.isImage = requestedPage.endsWith(".jpg") || requestedPage.endsWith(".bmp") || requestedPage.endsWith(".gif") || requestedPage.endsWith(".png");
+        // if method is POST and also has params in URL (extracting params from referer because firstLine == "params_info.html" at this point)
+        if (type.equals("POST") && referer != null && referer.contains("?")) {
+            parseParameters(referer.substring(referer.indexOf('?') + 1));
+        }
+    }
+
     private void parseRequestHeader(String requestHeader) throws IllegalArgumentException {
         parameters = new HashMap<>();
         // Split the request header into lines
@@ -42,6 +84,7 @@ public class HTTPRequest {
         {
             requestedPage = firstLineParts[1];
         }
+        version = firstLineParts.length > 2 ? firstLineParts[2] : null;
         // Check if the requested page has an image extension
         isImage = requestedPage.matches(".*\\.(jpg|bmp|gif|png)$");
 
@@ -56,7 +99,25 @@ public class HTTPRequest {
                 userAgent = line.substring("User-Agent:".strip().length());
             } else if (line.startsWith("chunked: yes") ||line.startsWith("chunked:yes") ) {
                 isChunked = true;
-            } 
+            } else if (line.startsWith("Connection:")) {
+                connection = line.substring("Connection:".length()).strip();
+            } else if (line.startsWith("Accept-Encoding:")) {
+                acceptEncoding = line.substring("Accept-Encoding:".length()).strip();
+            } else if (line.startsWith("If-None-Match:")) {
+                ifNoneMatch = line.substring("If-None-Match:".length()).strip();
+            } else if (line.startsWith("If-Modified-Since:")) {
+                ifModifiedSince = line.substring("If-Modified-Since:".length()).strip();
+            } else if (line.startsWith("Range:")) {
+                range = line.substring("Range:".length()).strip();
+            } else if (line.startsWith("If-Range:")) {
+                ifRange = line.substring("If-Range:".length()).strip();
+            } else if (line.startsWith("Transfer-Encoding:")) {
+                chunkedBody = line.toLowerCase().strip().endsWith("chunked");
+            } else if (line.startsWith("Upgrade:")) {
+                upgrade = line.substring("Upgrade:".length()).strip();
+            } else if (line.startsWith("HTTP2-Settings:")) {
+                http2Settings = line.substring("HTTP2-Settings:".length()).strip();
+            }
         }
         // if method is POST and also has params in URL (extracting params from referer because firstLine == "params_info.html" at this point)
         if (type.equals("POST") && referer != null && referer.contains("?")) {
@@ -66,9 +127,17 @@ public class HTTPRequest {
         checkValidity(this.toString(), firstLine);
     }
     public String getRequest() {
+        if (request == null) {
+            request = version == null ? type + " " + requestedPage : type + " " + requestedPage + " " + version;
+        }
         return request;
     }
 
+    // the raw header text, only kept by the parser for TRACE requests which echo it back
+    public String getRawHeader() {
+        return rawHeader;
+    }
+
     public String getType() {
         return type;
     }
@@ -97,6 +166,57 @@ public class HTTPRequest {
         return userAgent;
     }
 
+    public String getVersion() {
+        return version;
+    }
+
+    public String getConnection() {
+        return connection;
+    }
+
+    public String getAcceptEncoding() {
+        return acceptEncoding;
+    }
+
+    public String getIfNoneMatch() {
+        return ifNoneMatch;
+    }
+
+    public String getIfModifiedSince() {
+        return ifModifiedSince;
+    }
+
+    public String getRange() {
+        return range;
+    }
+
+    public String getIfRange() {
+        return ifRange;
+    }
+
+    // the request body uses chunked transfer coding, unlike isChunked which asks for a chunked response
+    public boolean hasChunkedBody() {
+        return chunkedBody;
+    }
+
+    // the protocols the client would rather switch to, e.g. h2c
+    public String getUpgrade() {
+        return upgrade;
+    }
+
+    // the base64url encoded SETTINGS payload sent along with Upgrade: h2c
+    public String getHttp2Settings() {
+        return http2Settings;
+    }
+
+    // HTTP/1.1 connections are persistent unless the client asks to close, HTTP/1.0 only on explicit keep-alive
+    public boolean isKeepAlive() {
+        if ("HTTP/1.1".equals(version)) {
+            return connection == null || !connection.equalsIgnoreCase("close");
+        }
+        return "HTTP/1.0".equals(version) && connection != null && connection.equalsIgnoreCase("keep-alive");
+    }
+
     public HashMap<String, String> getParameters() {
         return parameters;
     }
@@ -145,7 +265,7 @@ public class HTTPRequest {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("HTTP Request:\n");
-        sb.append(request).append("\n");
+        sb.append(getRequest()).append("\n");
         sb.append("Type: ").append(type).append("\n");
         sb.append("Requested Page: ").append(requestedPage).append("\n");
         sb.append("Is Image: ").append(isImage).append("\n");
@@ -0,0 +1,421 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+// Byte level state machine for the request line and headers. It reads straight from the
+// connection's buffer, can be fed partial data across reads, and is reset and reused for every
+// request on the connection. Only the fields HTTPRequest exposes become Strings, other headers
+// are skipped without copying them.
+public class HTTPRequestParser {
+    public static final int DEFAULT_MAX_HEADER_SIZE = 64 * 1024;
+
+    private static final int START = 0;
+    private static final int METHOD = 1;
+    private static final int TARGET = 2;
+    private static final int VERSION = 3;
+    private static final int HEADER_START = 4;
+    private static final int HEADER_NAME = 5;
+    private static final int HEADER_VALUE_START = 6;
+    private static final int HEADER_VALUE = 7;
+    private static final int DONE = 8;
+
+    private static final String[] METHODS = {"CONNECT", "DELETE", "GET", "HEAD", "OPTIONS", "PATCH", "POST", "PUT", "TRACE"};
+    private static final String[] VERSIONS = {"HTTP/1.0", "HTTP/1.1"};
+
+    // headers HTTPRequest keeps, matched case-insensitively against these lower case names
+    private static final byte[][] HEADER_NAMES = {
+            "content-length".getBytes(StandardCharsets.US_ASCII),
+            "referer".getBytes(StandardCharsets.US_ASCII),
+            "user-agent".getBytes(StandardCharsets.US_ASCII),
+            "chunked".getBytes(StandardCharsets.US_ASCII),
+            "connection".getBytes(StandardCharsets.US_ASCII),
+            "accept-encoding".getBytes(StandardCharsets.US_ASCII),
+            "if-none-match".getBytes(StandardCharsets.US_ASCII),
+            "if-modified-since".getBytes(StandardCharsets.US_ASCII),
+            "range".getBytes(StandardCharsets.US_ASCII),
+            "if-range".getBytes(StandardCharsets.US_ASCII),
+            "transfer-encoding".getBytes(StandardCharsets.US_ASCII),
+            "upgrade".getBytes(StandardCharsets.US_ASCII),
+            "http2-settings".getBytes(StandardCharsets.US_ASCII),
+    };
+    private static final int CONTENT_LENGTH = 0;
+    private static final int REFERER = 1;
+    private static final int USER_AGENT = 2;
+    private static final int CHUNKED = 3;
+    private static final int CONNECTION = 4;
+    private static final int ACCEPT_ENCODING = 5;
+    private static final int IF_NONE_MATCH = 6;
+    private static final int IF_MODIFIED_SINCE = 7;
+    private static final int RANGE = 8;
+    private static final int IF_RANGE = 9;
+    private static final int TRANSFER_ENCODING = 10;
+    private static final int UPGRADE = 11;
+    private static final int HTTP2_SETTINGS = 12;
+    private static final int UNKNOWN_HEADER = -1;
+
+    private final int maxHeaderSize;
+    private byte[] token = new byte[256];
+    private int tokenLength;
+    private byte[] raw;
+    private int rawLength;
+
+    private int state;
+    private int headerSize;
+    private int currentHeader;
+    private String method;
+    private String requestedPage;
+    private String version;
+    private int contentLength;
+    private String referer;
+    private String userAgent;
+    private boolean isChunked;
+    private String connection;
+    private String acceptEncoding;
+    private String ifNoneMatch;
+    private String ifModifiedSince;
+    private String range;
+    private String ifRange;
+    private boolean chunkedBody;
+    private String upgrade;
+    private String http2Settings;
+    private HashMap<String, String> parameters;
+
+    public HTTPRequestParser() {
+        this(DEFAULT_MAX_HEADER_SIZE);
+    }
+
+    public HTTPRequestParser(int maxHeaderSize) {
+        this.maxHeaderSize = maxHeaderSize;
+        reset();
+    }
+
+    public static class HeaderTooLargeException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        public HeaderTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    // prepares the parser for the next request on the same connection
+    public final void reset() {
+        state = START;
+        headerSize = 0;
+        tokenLength = 0;
+        rawLength = 0;
+        raw = null;
+        method = null;
+        requestedPage = null;
+        version = null;
+        contentLength = 0;
+        referer = null;
+        userAgent = null;
+        isChunked = false;
+        connection = null;
+        acceptEncoding = null;
+        ifNoneMatch = null;
+        ifModifiedSince = null;
+        range = null;
+        ifRange = null;
+        chunkedBody = false;
+        upgrade = null;
+        http2Settings = null;
+        parameters = new HashMap<>();
+    }
+
+    public boolean isComplete() {
+        return state == DONE;
+    }
+
+    // true once the first byte of a request line was read, blank lines before it do not count
+    public boolean isStarted() {
+        return state != START;
+    }
+
+    // Consumes bytes from the (heap) buffer's position until the header is complete. Returns true once
+    // the blank line ending the header was read, the buffer is then positioned at the body.
+    public boolean parse(ByteBuffer buffer) throws IllegalArgumentException {
+        byte[] bytes = buffer.array();
+        int position = buffer.arrayOffset() + buffer.position();
+        int limit = buffer.arrayOffset() + buffer.limit();
+        try {
+            while (state != DONE && position < limit) {
+                if (state == HEADER_VALUE && currentHeader == UNKNOWN_HEADER) {
+                    // values of headers nobody reads are skipped in a tight loop up to the line end
+                    int lineEnd = position;
+                    while (lineEnd < limit && bytes[lineEnd] != '\n') {
+                        lineEnd++;
+                    }
+                    headerSize += lineEnd - position;
+                    if (headerSize > maxHeaderSize) {
+                        throw new HeaderTooLargeException("Request header exceeds " + maxHeaderSize + " bytes");
+                    }
+                    if (raw != null) {
+                        for (int i = position; i < lineEnd; i++) {
+                            appendRaw(bytes[i]);
+                        }
+                    }
+                    position = lineEnd;
+                    if (position == limit) {
+                        break;
+                    }
+                }
+                parseByte(bytes[position++]);
+            }
+        } finally {
+            buffer.position(position - buffer.arrayOffset());
+        }
+        return state == DONE;
+    }
+
+    private void parseByte(byte b) {
+        if (state != START && ++headerSize > maxHeaderSize) {
+            throw new HeaderTooLargeException("Request header exceeds " + maxHeaderSize + " bytes");
+        }
+        if (raw != null) {
+            appendRaw(b);
+        }
+        if (b == '\r') {
+            return;
+        }
+        switch (state) {
+            case START -> {
+                // empty lines before a request, e.g. between pipelined requests, are ignored
+                if (b != '\n') {
+                    state = METHOD;
+                    headerSize = 1;
+                    appendToken(b);
+                }
+            }
+            case METHOD -> {
+                if (b == ' ' || b == '\t') {
+                    method = matchToken(METHODS);
+                    if (method == null) {
+                        throw new IllegalArgumentException("Unknown method: " + tokenString());
+                    }
+                    if (method.equals("TRACE")) {
+                        // TRACE echoes the request back, so only its raw header is recorded
+                        raw = new byte[256];
+                        for (byte c : "TRACE ".getBytes(StandardCharsets.US_ASCII)) {
+                            appendRaw(c);
+                        }
+                    }
+                    tokenLength = 0;
+                    state = TARGET;
+                } else if (b == '\n') {
+                    throw new IllegalArgumentException("Incomplete request line");
+                } else {
+                    appendToken(b);
+                }
+            }
+            case TARGET -> {
+                if ((b == ' ' || b == '\t') && tokenLength == 0) {
+                    return;
+                }
+                if (b == ' ' || b == '\t' || b == '\n') {
+                    parseTarget();
+                    tokenLength = 0;
+                    state = b == '\n' ? HEADER_START : VERSION;
+                } else {
+                    appendToken(b);
+                }
+            }
+            case VERSION -> {
+                if ((b == ' ' || b == '\t') && tokenLength == 0) {
+                    return;
+                }
+                if (b == '\n') {
+                    version = matchToken(VERSIONS);
+                    if (version == null) {
+                        throw new IllegalArgumentException("Unsupported version: " + tokenString());
+                    }
+                    tokenLength = 0;
+                    state = HEADER_START;
+                } else {
+                    appendToken(b);
+                }
+            }
+            case HEADER_START -> {
+                if (b == '\n') {
+                    state = DONE;
+                } else {
+                    appendToken(b);
+                    state = HEADER_NAME;
+                }
+            }
+            case HEADER_NAME -> {
+                if (b == ':') {
+                    currentHeader = matchHeaderName();
+                    tokenLength = 0;
+                    state = HEADER_VALUE_START;
+                } else if (b == '\n') {
+                    throw new IllegalArgumentException("Header line without a colon");
+                } else {
+                    appendToken(b);
+                }
+            }
+            case HEADER_VALUE_START, HEADER_VALUE -> {
+                if (b == '\n') {
+                    if (currentHeader != UNKNOWN_HEADER) {
+                        setHeader();
+                    }
+                    tokenLength = 0;
+                    state = HEADER_START;
+                } else if (state == HEADER_VALUE_START && (b == ' ' || b == '\t')) {
+                    return;
+                } else {
+                    state = HEADER_VALUE;
+                    if (currentHeader != UNKNOWN_HEADER) {
+                        appendToken(b);
+                    }
+                }
+            }
+            default -> throw new IllegalStateException();
+        }
+    }
+
+    // builds the request once parse returned true, the body is read separately by the engine
+    public HTTPRequest getRequest() {
+        if (state != DONE) {
+            throw new IllegalStateException("Request header is incomplete");
+        }
+        String rawHeader = raw == null ? null : new String(raw, 0, rawLength, StandardCharsets.UTF_8);
+        return new HTTPRequest(method, requestedPage, version, contentLength, referer, userAgent, isChunked, connection, acceptEncoding,
+                ifNoneMatch, ifModifiedSince, range, ifRange, chunkedBody, upgrade, http2Settings, parameters, rawHeader);
+    }
+
+    private void parseTarget() {
+        if (tokenLength == 0 || token[0] != '/') {
+            throw new IllegalArgumentException("Invalid request target: " + tokenString());
+        }
+        int pathEnd = 0;
+        while (pathEnd < tokenLength && token[pathEnd] != '?') {
+            pathEnd++;
+        }
+        requestedPage = new String(token, 0, pathEnd, StandardCharsets.UTF_8);
+        if (pathEnd < tokenLength) {
+            parseParameters(token, pathEnd + 1, tokenLength);
+        }
+    }
+
+    // splits key=value pairs separated by '&' straight from the bytes, empty pairs are skipped
+    private void parseParameters(byte[] bytes, int from, int to) {
+        int pairStart = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to || bytes[i] == '&') {
+                if (i > pairStart) {
+                    int equals = pairStart;
+                    while (equals < i && bytes[equals] != '=') {
+                        equals++;
+                    }
+                    String key = new String(bytes, pairStart, equals - pairStart, StandardCharsets.UTF_8);
+                    String value = equals < i ? new String(bytes, equals + 1, i - equals - 1, StandardCharsets.UTF_8) : "";
+                    parameters.put(key, value);
+                }
+                pairStart = i + 1;
+            }
+        }
+    }
+
+    private void setHeader() {
+        // trailing whitespace is not part of the value
+        while (tokenLength > 0 && (token[tokenLength - 1] == ' ' || token[tokenLength - 1] == '\t')) {
+            tokenLength--;
+        }
+        switch (currentHeader) {
+            case CONTENT_LENGTH -> contentLength = parseContentLength();
+            case REFERER -> referer = tokenString();
+            case USER_AGENT -> userAgent = tokenString();
+            case CHUNKED -> isChunked = tokenLength == 3 && (token[0] | 0x20) == 'y' && (token[1] | 0x20) == 'e' && (token[2] | 0x20) == 's';
+            case CONNECTION -> connection = tokenString();
+            case ACCEPT_ENCODING -> acceptEncoding = tokenString();
+            case IF_NONE_MATCH -> ifNoneMatch = tokenString();
+            case IF_MODIFIED_SINCE -> ifModifiedSince = tokenString();
+            case RANGE -> range = tokenString();
+            case IF_RANGE -> ifRange = tokenString();
+            // chunked is always the last coding, and it takes precedence over a Content-Length
+            case TRANSFER_ENCODING -> chunkedBody = tokenString().toLowerCase().endsWith("chunked");
+            case UPGRADE -> upgrade = tokenString();
+            case HTTP2_SETTINGS -> http2Settings = tokenString();
+            default -> {
+            }
+        }
+    }
+
+    private int parseContentLength() {
+        if (tokenLength == 0 || tokenLength > 10) {
+            throw new IllegalArgumentException("Invalid Content-Length");
+        }
+        long value = 0;
+        for (int i = 0; i < tokenLength; i++) {
+            if (token[i] < '0' || token[i] > '9') {
+                throw new IllegalArgumentException("Invalid Content-Length");
+            }
+            value = value * 10 + (token[i] - '0');
+        }
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid Content-Length");
+        }
+        return (int) value;
+    }
+
+    private int matchHeaderName() {
+        // whitespace before the colon is tolerated
+        while (tokenLength > 0 && (token[tokenLength - 1] == ' ' || token[tokenLength - 1] == '\t')) {
+            tokenLength--;
+        }
+        for (int i = 0; i < HEADER_NAMES.length; i++) {
+            byte[] name = HEADER_NAMES[i];
+            if (name.length != tokenLength) {
+                continue;
+            }
+            int j = 0;
+            while (j < tokenLength && (token[j] | 0x20) == name[j]) {
+                j++;
+            }
+            if (j == tokenLength) {
+                return i;
+            }
+        }
+        return UNKNOWN_HEADER;
+    }
+
+    // returns the constant equal to the current token, so known values allocate nothing
+    private String matchToken(String[] candidates) {
+        for (String candidate : candidates) {
+            if (candidate.length() != tokenLength) {
+                continue;
+            }
+            int i = 0;
+            while (i < tokenLength && token[i] == candidate.charAt(i)) {
+                i++;
+            }
+            if (i == tokenLength) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private String tokenString() {
+        return new String(token, 0, tokenLength, StandardCharsets.UTF_8);
+    }
+
+    private void appendToken(byte b) {
+        if (tokenLength == token.length) {
+            byte[] larger = new byte[token.length * 2];
+            System.arraycopy(token, 0, larger, 0, tokenLength);
+            token = larger;
+        }
+        token[tokenLength++] = b;
+    }
+
+    private void appendRaw(byte b) {
+        if (rawLength == raw.length) {
+            byte[] larger = new byte[raw.length * 2];
+            System.arraycopy(raw, 0, larger, 0, rawLength);
+            raw = larger;
+        }
+        raw[rawLength++] = b;
+    }
+}
@@ -0,0 +1,461 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+public class HTTPResponse {
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+    // largest single transferTo, the stream is flushed between slices so a blocked write is noticed
+    private static final long TRANSFER_SLICE = 1024 * 1024;
+    private static int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    private final int statusCode;
+    private final String contentType;
+    private final byte[] content;
+    private final File file;
+    private final ContentGenerator generator;
+    private final long contentLength;
+    private final boolean isChunked;
+    private boolean sendContent;
+    private boolean keepAlive;
+    private final LinkedHashMap<String, String> headers;
+    private LinkedHashMap<String, String> trailers;
+    // for 206 responses: the requested [first, last] byte pairs of the content or file,
+    // sent as one part or, when there are several, as multipart/byteranges
+    private final long[] ranges;
+    private final String partContentType;
+    private final String boundary;
+    // the length of the whole content the ranges were cut from, as the FileIndex or a stat found it
+    private final long fullLength;
+
+    public HTTPResponse(int statusCode) {
+        this(statusCode, null, (byte[]) null, false);
+    }
+
+    public HTTPResponse(int statusCode, String contentType, byte[] content, boolean isChunked) {
+        this.statusCode = statusCode;
+        this.contentType = contentType;
+        this.content = content;
+        this.file = null;
+        this.generator = null;
+        this.contentLength = content != null ? content.length : -1;
+        this.isChunked = isChunked;
+        this.sendContent = content != null;
+        this.headers = new LinkedHashMap<>();
+        this.ranges = null;
+        this.partContentType = null;
+        this.boundary = null;
+        this.fullLength = -1;
+    }
+
+    // Large files are not loaded into memory, they are transferred straight from disk when written.
+    // The length is the one the FileIndex or a stat already found.
+    public HTTPResponse(int statusCode, String contentType, File file, long length, boolean isChunked) {
+        this.statusCode = statusCode;
+        this.contentType = contentType;
+        this.content = null;
+        this.file = file;
+        this.generator = null;
+        this.contentLength = length;
+        this.isChunked = isChunked;
+        this.sendContent = true;
+        this.headers = new LinkedHashMap<>();
+        this.ranges = null;
+        this.partContentType = null;
+        this.boundary = null;
+        this.fullLength = -1;
+    }
+
+    // content produced while the response is written, its length is not known up front so it is always chunked
+    public HTTPResponse(int statusCode, String contentType, ContentGenerator generator) {
+        this.statusCode = statusCode;
+        this.contentType = contentType;
+        this.content = null;
+        this.file = null;
+        this.generator = generator;
+        this.contentLength = -1;
+        this.isChunked = true;
+        this.sendContent = true;
+        this.headers = new LinkedHashMap<>();
+        this.ranges = null;
+        this.partContentType = null;
+        this.boundary = null;
+        this.fullLength = -1;
+    }
+
+    private HTTPResponse(HTTPResponse full, long[] ranges) {
+        this.statusCode = 206;
+        this.content = full.content;
+        this.file = full.file;
+        this.generator = null;
+        this.isChunked = false;
+        this.sendContent = full.sendContent;
+        this.keepAlive = full.keepAlive;
+        this.headers = new LinkedHashMap<>(full.headers);
+        this.ranges = ranges;
+        this.partContentType = full.contentType;
+        this.fullLength = full.contentLength;
+        if (ranges.length == 2) {
+            this.contentType = full.contentType;
+            this.boundary = null;
+            this.contentLength = ranges[1] - ranges[0] + 1;
+            headers.put("Content-Range", "bytes " + ranges[0] + "-" + ranges[1] + "/" + full.contentLength);
+        } else {
+            this.boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+            this.contentType = "multipart/byteranges; boundary=" + boundary;
+            long length = closingBoundary().length;
+            for (int i = 0; i < ranges.length; i += 2) {
+                length += partHeader(i).length + ranges[i + 1] - ranges[i] + 1;
+            }
+            this.contentLength = length;
+        }
+    }
+
+    public interface ContentGenerator {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    // the size of the chunks chunked responses are cut into, from config.ini
+    public static void setChunkSize(int size) {
+        chunkSize = size;
+    }
+
+    // the 206 Partial Content response for ranges of this 200 response's body
+    public HTTPResponse withRanges(long[] ranges) {
+        return new HTTPResponse(this, ranges);
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public boolean isChunked() {
+        return isChunked;
+    }
+
+    public boolean isSendContent() {
+        return sendContent;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    // HEAD responses advertise the content length but carry no body
+    public void setSendContent(boolean sendContent) {
+        this.sendContent = sendContent && (content != null || file != null || generator != null);
+    }
+
+    public void addHeader(String name, String value) {
+        headers.put(name, value);
+    }
+
+    // fields sent after a chunked body, announced in the Trailer header
+    public void addTrailer(String name, String value) {
+        if (trailers == null) {
+            trailers = new LinkedHashMap<>();
+        }
+        trailers.put(name, value);
+    }
+
+    public String getHeaderValue(String name) {
+        return headers.get(name);
+    }
+
+    public String getHeader() {
+        String statusMessage = switch (statusCode) {
+            case 200 -> "OK";
+            case 206 -> "Partial Content";
+            case 304 -> "Not Modified";
+            case 404 -> "Not Found";
+            case 408 -> "Request Timeout";
+            case 412 -> "Precondition Failed";
+            case 413 -> "Payload Too Large";
+            case 501 -> "Not Implemented";
+            case 400 -> "Bad Request";
+            case 416 -> "Range Not Satisfiable";
+            case 431 -> "Request Header Fields Too Large";
+            case 500 -> "Internal Server Error";
+            case 503 -> "Service Unavailable";
+            default -> "";
+        };
+
+        StringBuilder responseBuilder = new StringBuilder();
+        responseBuilder.append("HTTP/1.1 ").append(statusCode).append(" ").append(statusMessage).append("\r\n");
+
+        if (contentType != null) {
+            responseBuilder.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+
+        if (isChunked) {
+            // the chunks frame the body, a Content-Length next to them is not allowed
+            responseBuilder.append("Transfer-Encoding: chunked\r\n");
+            if (trailers != null) {
+                responseBuilder.append("Trailer: ").append(String.join(", ", trailers.keySet())).append("\r\n");
+            }
+        } else if (contentLength >= 0) {
+            responseBuilder.append("Content-Length: ").append(contentLength).append("\r\n");
+        } else if (statusCode != 304) {
+            // an explicit empty body keeps the response framed on a persistent connection
+            responseBuilder.append("Content-Length: 0\r\n");
+        }
+
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            responseBuilder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+
+        responseBuilder.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        responseBuilder.append("\r\n");
+        return responseBuilder.toString();
+    }
+
+    // The header fields for HTTP/2: lower case names, no status line and none of the connection specific
+    // fields. The length is sent whenever it is known, DATA frames carry the body without chunks.
+    public void forEachHttp2Field(BiConsumer<String, String> field) {
+        if (contentType != null) {
+            field.accept("content-type", contentType);
+        }
+        if (contentLength >= 0) {
+            field.accept("content-length", Long.toString(contentLength));
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (!name.equals("keep-alive") && !name.equals("connection")) {
+                field.accept(name, header.getValue());
+            }
+        }
+    }
+
+    // receives the body in order, as pieces of memory and regions of the file
+    public interface BodyVisitor {
+        void bytes(byte[] bytes, int offset, int length) throws IOException;
+
+        void fileRegion(File file, long position, long length) throws IOException;
+    }
+
+    // walks the body without chunk framing, ranges and multipart boundaries included; generated
+    // content is produced in memory first
+    public void visitBody(BodyVisitor visitor) throws IOException {
+        if (generator != null) {
+            ByteArrayOutputStream generated = new ByteArrayOutputStream();
+            generator.writeTo(generated);
+            visitor.bytes(generated.toByteArray(), 0, generated.size());
+            return;
+        }
+        if (ranges == null) {
+            visitSlice(visitor, 0, contentLength);
+            return;
+        }
+        if (boundary == null) {
+            visitSlice(visitor, ranges[0], contentLength);
+            return;
+        }
+        for (int i = 0; i < ranges.length; i += 2) {
+            byte[] partHeader = partHeader(i);
+            visitor.bytes(partHeader, 0, partHeader.length);
+            visitSlice(visitor, ranges[i], ranges[i + 1] - ranges[i] + 1);
+        }
+        byte[] closing = closingBoundary();
+        visitor.bytes(closing, 0, closing.length);
+    }
+
+    private void visitSlice(BodyVisitor visitor, long offset, long length) throws IOException {
+        if (file != null) {
+            visitor.fileRegion(file, offset, length);
+        } else {
+            visitor.bytes(content, (int) offset, (int) length);
+        }
+    }
+
+    private byte[] partHeader(int index) {
+        return ("\r\n--" + boundary + "\r\nContent-Type: " + partContentType + "\r\nContent-Range: bytes "
+                + ranges[index] + "-" + ranges[index + 1] + "/" + fullLength + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] closingBoundary() {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public void writeTo(OutputStream os) throws IOException {
+        writeTo(os, null);
+    }
+
+    // the socket's channel, when it has one, lets file content go to the socket without passing through the heap
+    public void writeTo(OutputStream os, WritableByteChannel channel) throws IOException {
+        os.write(getHeader().getBytes(StandardCharsets.UTF_8));
+        if (sendContent) {
+            if (isChunked) {
+                writeChunked(os);
+            } else {
+                visitBody(new BodyVisitor() {
+                    @Override
+                    public void bytes(byte[] bytes, int offset, int length) throws IOException {
+                        os.write(bytes, offset, length);
+                    }
+
+                    @Override
+                    public void fileRegion(File file, long position, long length) throws IOException {
+                        writeFileRegion(os, channel, file, position, length);
+                    }
+                });
+            }
+        }
+    }
+
+    // The body goes through a ChunkedOutputStream, which frames it in chunkSize chunks with one write
+    // per chunk. Files are streamed through it, so they are never loaded whole.
+    private void writeChunked(OutputStream os) throws IOException {
+        // a body shorter than a chunk only needs a buffer of its own size
+        int size = contentLength >= 0 ? (int) Math.max(1, Math.min(chunkSize, contentLength)) : chunkSize;
+        ChunkedOutputStream chunked = new ChunkedOutputStream(os, size);
+        if (generator != null) {
+            generator.writeTo(chunked);
+        } else if (content != null) {
+            chunked.write(content, 0, content.length);
+        } else {
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                InputStream in = Channels.newInputStream(fileChannel);
+                byte[] buffer = new byte[Math.min(size, 64 * 1024)];
+                long remaining = contentLength;
+                int read;
+                while (remaining > 0 && (read = in.readNBytes(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+                    remaining -= read;
+                    chunked.write(buffer, 0, read);
+                }
+            }
+        }
+        chunked.finish(trailers);
+    }
+
+    // the chunked body of a file response one framed chunk at a time, see ChunkedFileBody
+    public ChunkedFileBody openChunkedFileBody() {
+        return new ChunkedFileBody();
+    }
+
+    // For writers that must not block on the file, e.g. an NIO event loop: next() reads and frames
+    // the following chunk, and may run on another thread than the one writing it. Only one chunk is
+    // held at a time, the buffer it returns is reused by the next call.
+    public class ChunkedFileBody implements Closeable {
+        private final FramedChunk framed = new FramedChunk();
+        private final ChunkedOutputStream chunked;
+        private final byte[] buffer;
+        private FileChannel fileChannel;
+        private InputStream in;
+        private long remaining = contentLength;
+        private boolean done;
+
+        private ChunkedFileBody() {
+            int size = (int) Math.max(1, Math.min(chunkSize, contentLength));
+            chunked = new ChunkedOutputStream(framed, size);
+            buffer = new byte[size];
+        }
+
+        // the next chunk, the last one followed by the zero size chunk and the trailer fields
+        public ByteBuffer next() throws IOException {
+            framed.reset();
+            if (remaining > 0) {
+                if (fileChannel == null) {
+                    fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    in = Channels.newInputStream(fileChannel);
+                }
+                int read = in.readNBytes(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == 0) {
+                    throw new IOException("File shrank while it was being sent: " + file);
+                }
+                remaining -= read;
+                chunked.write(buffer, 0, read);
+                chunked.flush();
+            }
+            if (remaining == 0) {
+                chunked.finish(trailers);
+                done = true;
+                close();
+            }
+            return framed.view();
+        }
+
+        // the last chunk was returned by next
+        public boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileChannel != null) {
+                fileChannel.close();
+            }
+        }
+    }
+
+    // collects one framed chunk and hands it out without copying
+    private static class FramedChunk extends ByteArrayOutputStream {
+        ByteBuffer view() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private static void writeFileRegion(OutputStream os, WritableByteChannel channel, File file, long position, long length) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long end = position + length;
+            if (channel != null) {
+                // pending header bytes must reach the socket before the file does
+                os.flush();
+                while (position < end) {
+                    long transferred = fileChannel.transferTo(position, Math.min(end - position, TRANSFER_SLICE), channel);
+                    if (transferred == 0 && position >= fileChannel.size()) {
+                        throw new IOException("File shrank while it was being sent: " + file);
+                    }
+                    position += transferred;
+                    os.flush();
+                }
+                return;
+            }
+
+            // without a channel the file is streamed through a small buffer
+            InputStream in = Channels.newInputStream(fileChannel.position(position));
+            byte[] buffer = new byte[8192];
+            long remaining = length;
+            int read;
+            while (remaining > 0 && (read = in.readNBytes(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+                remaining -= read;
+                os.write(buffer, 0, read);
+            }
+            if (remaining > 0) {
+                throw new IOException("File shrank while it was being sent: " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,440 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+// HPACK (RFC 7541), the header compression of HTTP/2: the static table, the dynamic table both ends
+// keep in step, integers with a bit prefix and strings in the canonical Huffman code. A Decoder reads
+// the client's header blocks and an Encoder writes the server's, one of each per connection. Names and
+// values are handled as Latin-1, so every octet survives the translation to the HTTP/1.1 text the
+// request parser reads.
+public class Hpack {
+    // the table size both ends start with, the server never asks for a larger one
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+    // every entry counts this much on top of its name and value against the table size
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+            {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+            {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+            {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""}, {"date", ""}, {"etag", ""},
+            {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+            {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""},
+            {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""},
+            {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""}, {"set-cookie", ""},
+            {"strict-transport-security", ""}, {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+            {"www-authenticate", ""}};
+    // static table indexes of whole fields ("name\0value") and of names alone, the lowest index wins
+    private static final HashMap<String, Integer> STATIC_FIELDS = new HashMap<>();
+    private static final HashMap<String, Integer> STATIC_NAMES = new HashMap<>();
+    // fields whose values change with nearly every response, entering them would only evict useful ones
+    private static final Set<String> NOT_INDEXED = Set.of("content-length", "content-range", "etag", "last-modified", "date", "set-cookie");
+
+    // Code lengths of the 256 octets and of EOS. The code is canonical, codes of one length are
+    // consecutive in symbol order and follow the shorter ones, so the codes follow from the lengths.
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30};
+    private static final int EOS = 256;
+    private static final int MAX_CODE_LENGTH = 30;
+    private static final int[] HUFFMAN_CODES = new int[EOS + 1];
+    // per code length: the first code, how many codes there are and where their symbols start in HUFFMAN_SYMBOLS
+    private static final int[] FIRST_CODE = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] CODE_COUNT = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] SYMBOL_OFFSET = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] HUFFMAN_SYMBOLS = new int[EOS + 1];
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+        }
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            CODE_COUNT[HUFFMAN_LENGTHS[symbol]]++;
+        }
+        int code = 0;
+        int offset = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            FIRST_CODE[length] = code;
+            SYMBOL_OFFSET[length] = offset;
+            code = (code + CODE_COUNT[length]) << 1;
+            offset += CODE_COUNT[length];
+        }
+        int[] next = SYMBOL_OFFSET.clone();
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int length = HUFFMAN_LENGTHS[symbol];
+            HUFFMAN_CODES[symbol] = FIRST_CODE[length] + next[length] - SYMBOL_OFFSET[length];
+            HUFFMAN_SYMBOLS[next[length]++] = symbol;
+        }
+    }
+
+    // a header block that cannot be decoded, the connection's tables are out of step after it
+    public static class CompressionException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        public CompressionException(String message) {
+            super(message);
+        }
+    }
+
+    // Decodes the client's header blocks. Each block must be decoded, in order, even when its request is
+    // refused, since the dynamic table changes with it.
+    public static class Decoder {
+        private final DynamicTable table;
+        private final int maxTableSize;
+        private byte[] data;
+        private int position;
+        private int end;
+
+        // maxTableSize is the SETTINGS_HEADER_TABLE_SIZE the server announced
+        public Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.table = new DynamicTable(maxTableSize);
+        }
+
+        // Adds the block's fields to fields, names and values alternating. Refuses a block whose fields
+        // add up to more than maxListSize, counted like the table counts entries.
+        public void decode(byte[] block, int offset, int length, List<String> fields, int maxListSize) {
+            data = block;
+            position = offset;
+            end = offset + length;
+            long listSize = 0;
+            boolean fieldSeen = false;
+            try {
+                while (position < end) {
+                    int b = data[position] & 0xff;
+                    String name;
+                    String value;
+                    if ((b & 0x80) != 0) {
+                        int index = readInteger(7);
+                        name = name(index);
+                        value = value(index);
+                    } else if ((b & 0x20) != 0 && (b & 0x40) == 0) {
+                        // a dynamic table size update, only allowed before the first field
+                        if (fieldSeen) {
+                            throw new CompressionException("Table size update after a header field");
+                        }
+                        int size = readInteger(5);
+                        if (size > maxTableSize) {
+                            throw new CompressionException("Table size update beyond " + maxTableSize);
+                        }
+                        table.setCapacity(size);
+                        continue;
+                    } else {
+                        // literal with incremental indexing (01), without indexing (0000) or never indexed (0001)
+                        boolean indexed = (b & 0x40) != 0;
+                        int index = readInteger(indexed ? 6 : 4);
+                        name = index == 0 ? readString() : name(index);
+                        value = readString();
+                        if (indexed) {
+                            table.add(name, value);
+                        }
+                    }
+                    fieldSeen = true;
+                    listSize += name.length() + value.length() + ENTRY_OVERHEAD;
+                    if (listSize > maxListSize) {
+                        throw new CompressionException("Header list exceeds " + maxListSize + " bytes");
+                    }
+                    fields.add(name);
+                    fields.add(value);
+                }
+            } finally {
+                data = null;
+            }
+        }
+
+        private String name(int index) {
+            if (index == 0) {
+                throw new CompressionException("Index 0");
+            }
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][0];
+            }
+            if (index - STATIC_TABLE.length > table.count) {
+                throw new CompressionException("Index " + index + " beyond the dynamic table");
+            }
+            return table.name(index - STATIC_TABLE.length - 1);
+        }
+
+        private String value(int index) {
+            return index <= STATIC_TABLE.length ? STATIC_TABLE[index - 1][1] : table.value(index - STATIC_TABLE.length - 1);
+        }
+
+        private int readInteger(int prefixBits) {
+            int max = (1 << prefixBits) - 1;
+            int value = data[position++] & max;
+            if (value < max) {
+                return value;
+            }
+            int shift = 0;
+            int b;
+            do {
+                if (position == end) {
+                    throw new CompressionException("Truncated integer");
+                }
+                if (shift > 21) {
+                    throw new CompressionException("Integer too large");
+                }
+                b = data[position++] & 0xff;
+                value += (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private String readString() {
+            if (position == end) {
+                throw new CompressionException("Truncated string");
+            }
+            boolean huffman = (data[position] & 0x80) != 0;
+            int length = readInteger(7);
+            if (length > end - position) {
+                throw new CompressionException("Truncated string");
+            }
+            String string = huffman ? huffmanDecode(data, position, length)
+                    : new String(data, position, length, StandardCharsets.ISO_8859_1);
+            position += length;
+            return string;
+        }
+    }
+
+    // Encodes the server's header blocks. Fields are sent as table indexes where the static or dynamic
+    // table has them, and otherwise entered into the dynamic table unless their values change with
+    // every response, so repeated fields like content-type and vary soon cost a byte each.
+    public static class Encoder {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        // the smallest capacity since the last block, the decoder must see it before the current one
+        private int smallestCapacity = -1;
+
+        // the client's SETTINGS_HEADER_TABLE_SIZE, the table stays within it and within the default
+        public void setMaxTableSize(int size) {
+            int capacity = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (capacity != table.capacity) {
+                table.setCapacity(capacity);
+                smallestCapacity = smallestCapacity < 0 ? capacity : Math.min(smallestCapacity, capacity);
+            }
+        }
+
+        // encodes a block from names and values alternating, blocks must be sent in the order they were encoded
+        public byte[] encode(List<String> fields) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+            if (smallestCapacity >= 0) {
+                writeInteger(out, 0x20, 5, smallestCapacity);
+                if (smallestCapacity != table.capacity) {
+                    writeInteger(out, 0x20, 5, table.capacity);
+                }
+                smallestCapacity = -1;
+            }
+            for (int i = 0; i < fields.size(); i += 2) {
+                encode(out, fields.get(i), fields.get(i + 1));
+            }
+            return out.toByteArray();
+        }
+
+        private void encode(ByteArrayOutputStream out, String name, String value) {
+            Integer index = STATIC_FIELDS.get(name + '\0' + value);
+            if (index != null) {
+                writeInteger(out, 0x80, 7, index);
+                return;
+            }
+            int dynamic = table.find(name, value);
+            if (dynamic >= 0) {
+                writeInteger(out, 0x80, 7, STATIC_TABLE.length + dynamic + 1);
+                return;
+            }
+            Integer nameIndex = STATIC_NAMES.get(name);
+            if (nameIndex == null) {
+                int dynamicName = table.findName(name);
+                nameIndex = dynamicName >= 0 ? STATIC_TABLE.length + dynamicName + 1 : 0;
+            }
+            boolean indexed = !NOT_INDEXED.contains(name);
+            if (indexed) {
+                writeInteger(out, 0x40, 6, nameIndex);
+            } else {
+                writeInteger(out, 0x00, 4, nameIndex);
+            }
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+            if (indexed) {
+                table.add(name, value);
+            }
+        }
+    }
+
+    // The entries both ends added, newest first: index 0 is the most recent. A ring of power of two size.
+    private static class DynamicTable {
+        private String[] names = new String[32];
+        private String[] values = new String[32];
+        private int newest = -1;
+        private int count;
+        private int size;
+        private int capacity;
+
+        DynamicTable(int capacity) {
+            this.capacity = capacity;
+        }
+
+        String name(int index) {
+            return names[(newest - index) & (names.length - 1)];
+        }
+
+        String value(int index) {
+            return values[(newest - index) & (names.length - 1)];
+        }
+
+        // an entry larger than the whole table empties it and is not added
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            evict(capacity - entrySize);
+            if (entrySize > capacity) {
+                return;
+            }
+            if (count == names.length) {
+                grow();
+            }
+            newest = (newest + 1) & (names.length - 1);
+            names[newest] = name;
+            values[newest] = value;
+            count++;
+            size += entrySize;
+        }
+
+        void setCapacity(int capacity) {
+            this.capacity = capacity;
+            evict(capacity);
+        }
+
+        int find(String name, String value) {
+            for (int i = 0; i < count; i++) {
+                if (name(i).equals(name) && value(i).equals(value)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int findName(String name) {
+            for (int i = 0; i < count; i++) {
+                if (name(i).equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // drops the oldest entries until the size is at most target
+        private void evict(int target) {
+            while (count > 0 && size > target) {
+                int oldest = (newest - count + 1) & (names.length - 1);
+                size -= names[oldest].length() + values[oldest].length() + ENTRY_OVERHEAD;
+                names[oldest] = null;
+                values[oldest] = null;
+                count--;
+            }
+        }
+
+        private void grow() {
+            String[] largerNames = new String[names.length * 2];
+            String[] largerValues = new String[names.length * 2];
+            for (int i = 0; i < count; i++) {
+                largerNames[count - 1 - i] = name(i);
+                largerValues[count - 1 - i] = value(i);
+            }
+            names = largerNames;
+            values = largerValues;
+            newest = count - 1;
+        }
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, int pattern, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(pattern | value);
+            return;
+        }
+        out.write(pattern | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // Huffman coded when that is shorter, which it is for most text
+    private static void writeString(ByteArrayOutputStream out, String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.ISO_8859_1);
+        long bits = 0;
+        for (byte b : bytes) {
+            bits += HUFFMAN_LENGTHS[b & 0xff];
+        }
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength >= bytes.length) {
+            writeInteger(out, 0x00, 7, bytes.length);
+            out.write(bytes, 0, bytes.length);
+            return;
+        }
+        writeInteger(out, 0x80, 7, huffmanLength);
+        long pending = 0;
+        int pendingBits = 0;
+        for (byte b : bytes) {
+            int symbol = b & 0xff;
+            pending = pending << HUFFMAN_LENGTHS[symbol] | HUFFMAN_CODES[symbol];
+            pendingBits += HUFFMAN_LENGTHS[symbol];
+            while (pendingBits >= 8) {
+                pendingBits -= 8;
+                out.write((int) (pending >>> pendingBits));
+            }
+            pending &= (1L << pendingBits) - 1;
+        }
+        if (pendingBits > 0) {
+            // padded with the most significant bits of EOS, all ones
+            out.write((int) (pending << (8 - pendingBits)) | 0xff >>> pendingBits);
+        }
+    }
+
+    // canonical decoding bit by bit: a code is complete once it falls within its length's range
+    private static String huffmanDecode(byte[] data, int offset, int length) {
+        StringBuilder text = new StringBuilder(length * 8 / 5);
+        int code = 0;
+        int codeLength = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                code = code << 1 | (b >>> bit) & 1;
+                codeLength++;
+                int index = code - FIRST_CODE[codeLength];
+                if (index >= 0 && index < CODE_COUNT[codeLength]) {
+                    int symbol = HUFFMAN_SYMBOLS[SYMBOL_OFFSET[codeLength] + index];
+                    if (symbol == EOS) {
+                        throw new CompressionException("EOS in a Huffman coded string");
+                    }
+                    text.append((char) symbol);
+                    code = 0;
+                    codeLength = 0;
+                } else if (codeLength == MAX_CODE_LENGTH) {
+                    throw new CompressionException("Invalid Huffman code");
+                }
+            }
+        }
+        // the padding is shorter than a byte and made of the most significant bits of EOS, all ones
+        if (codeLength > 7 || code != (1 << codeLength) - 1) {
+            throw new CompressionException("Invalid Huffman padding");
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,1067 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+// One HTTP/2 connection (RFC 9113), independent of how its bytes travel so both engines drive it:
+// receive takes whatever arrived from the client and produce fills a buffer with the frames ready to
+// go. Each stream's request is translated to the HTTP/1.1 header text HTTPRequestParser reads, its body
+// is decoded by a RequestBodyDecoder as DATA frames arrive, and it is answered by
+// WebServer.processRequest once its last frame is in. Responses go out as HEADERS and DATA frames, the
+// DATA of all streams interleaved frame by frame in turn and kept within the windows the client grants,
+// so a large image does not hold back the small files requested next to it.
+public class Http2Connection {
+    // what the client sends first, with prior knowledge or after the 101 answering Upgrade: h2c
+    public static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    public static final byte[] SWITCHING_PROTOCOLS = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+    public static final int PREFACE_MATCH = 1;
+    public static final int PREFACE_PARTIAL = 0;
+    public static final int PREFACE_NONE = -1;
+    // the buffers given to produce hold a whole frame of the largest size sent
+    public static final int OUTPUT_BUFFER_SIZE = 32 * 1024;
+
+    private static final int FRAME_HEADER_SIZE = 9;
+    // the default SETTINGS_MAX_FRAME_SIZE, used both ways: the server never asks for more and never sends more
+    private static final int MAX_FRAME_SIZE = 16384;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int MAX_HEADER_LIST_SIZE = HTTPRequestParser.DEFAULT_MAX_HEADER_SIZE;
+    // frames waiting to be sent beyond this mean the client keeps asking for answers without reading them
+    private static final int MAX_QUEUED_FRAMES = 10000;
+
+    // the framing around each DATA frame fed to a RequestBodyDecoder
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY_FLAG = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private final String remoteAddress;
+    private final long maxBodySize;
+    private final int maxConcurrentStreams;
+    // answers requests that read from disk elsewhere, null to answer every request in place
+    private final Offload offload;
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final HTTPRequestParser parser = new HTTPRequestParser();
+    private final HashMap<Integer, Stream> streams = new HashMap<>();
+    // streams with DATA to send and window to send it in, each sends one frame and goes to the back
+    private final ArrayDeque<Stream> sending = new ArrayDeque<>();
+    // every other frame, in order: header blocks are HPACK encoded when queued and must be sent in that order
+    private final ArrayDeque<byte[]> control = new ArrayDeque<>();
+    // the frame being received, header first
+    private final byte[] frame = new byte[FRAME_HEADER_SIZE + MAX_FRAME_SIZE];
+    private int frameLength;
+    private int prefaceReceived;
+    private boolean settingsReceived;
+    // a header block whose CONTINUATION frames are still to come
+    private ByteArrayOutputStream headerBlock;
+    private int headerBlockStream;
+    private boolean headerBlockEndsStream;
+    private int lastStreamId;
+    private long sendWindow = DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindow = DEFAULT_WINDOW_SIZE;
+    private int receiveWindow = DEFAULT_WINDOW_SIZE;
+    // received DATA not yet given back with a WINDOW_UPDATE
+    private int unacknowledged;
+    private boolean goingAway;
+    private boolean failed;
+
+    // Computes a response away from the thread driving the connection and hands it to answer back on
+    // that thread, e.g. from an NIO event loop to a worker and back.
+    public interface Offload {
+        void submit(HTTPRequest request, Consumer<HTTPResponse> answer);
+    }
+
+    // a connection level error, answered with GOAWAY
+    private static class ConnectionException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int errorCode;
+
+        ConnectionException(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+
+    private class Stream {
+        private final int id;
+        // when the request started, for the access log and for readTimeout
+        private final long start = System.nanoTime();
+        private final long receiveStarted = System.currentTimeMillis();
+        private HTTPRequest request;
+        private RequestBodyDecoder body;
+        // the client's content-length, -1 without one, checked against the DATA received
+        private long declaredLength = -1;
+        private long received;
+        private boolean remoteClosed;
+        // answered before the request was complete, the rest of it is dropped
+        private boolean discarding;
+        private long sendWindow = peerInitialWindow;
+        private int receiveWindow = DEFAULT_WINDOW_SIZE;
+        private int unacknowledged;
+        // the response body not sent yet
+        private final ArrayDeque<BodyPiece> pieces = new ArrayDeque<>();
+        private long remaining;
+        private FileChannel fileChannel;
+        // out of window, back in sending once a WINDOW_UPDATE opens it
+        private boolean blocked;
+
+        Stream(int id) {
+            this.id = id;
+        }
+
+        // moves length bytes of the body to out, file regions are read as they are sent
+        void copyBody(ByteBuffer out, int length) throws IOException {
+            while (length > 0) {
+                BodyPiece piece = pieces.peek();
+                int count = (int) Math.min(length, piece.length);
+                if (piece.bytes != null) {
+                    out.put(piece.bytes, piece.offset, count);
+                    piece.offset += count;
+                } else {
+                    if (fileChannel == null) {
+                        fileChannel = FileChannel.open(piece.file.toPath(), StandardOpenOption.READ);
+                    }
+                    int limit = out.limit();
+                    out.limit(out.position() + count);
+                    try {
+                        while (out.hasRemaining()) {
+                            int read = fileChannel.read(out, piece.position);
+                            if (read < 0) {
+                                throw new IOException("File shrank while it was being sent: " + piece.file);
+                            }
+                            piece.position += read;
+                        }
+                    } finally {
+                        out.limit(limit);
+                    }
+                }
+                piece.length -= count;
+                length -= count;
+                if (piece.length == 0) {
+                    pieces.poll();
+                    closeFile();
+                }
+            }
+        }
+
+        void closeFile() {
+            if (fileChannel != null) {
+                try {
+                    fileChannel.close();
+                } catch (IOException e) {
+                    System.out.println("Something went wrong with the input/output");
+                }
+                fileChannel = null;
+            }
+        }
+    }
+
+    // a part of a response body: bytes in memory or a region of a file
+    private static class BodyPiece {
+        private final byte[] bytes;
+        private int offset;
+        private final File file;
+        private long position;
+        private long length;
+
+        BodyPiece(byte[] bytes, int offset, File file, long position, long length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.file = file;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    // The server's SETTINGS go out first. maxConcurrentStreams bounds the streams a client may have
+    // open at once, more are refused with REFUSED_STREAM.
+    public Http2Connection(String remoteAddress, long maxBodySize, int maxConcurrentStreams) {
+        this(remoteAddress, maxBodySize, maxConcurrentStreams, null);
+    }
+
+    public Http2Connection(String remoteAddress, long maxBodySize, int maxConcurrentStreams, Offload offload) {
+        this.remoteAddress = remoteAddress;
+        this.maxBodySize = maxBodySize;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.offload = offload;
+        byte[] settings = new byte[12];
+        putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams);
+        putSetting(settings, 6, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+        queueFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+    }
+
+    // Whether the bytes from the buffer's position start with the preface: PREFACE_PARTIAL while
+    // everything so far matches but more is needed to tell.
+    public static int matchPreface(ByteBuffer buffer) {
+        int count = Math.min(buffer.remaining(), PREFACE.length);
+        for (int i = 0; i < count; i++) {
+            if (buffer.get(buffer.position() + i) != PREFACE[i]) {
+                return PREFACE_NONE;
+            }
+        }
+        return count == PREFACE.length ? PREFACE_MATCH : PREFACE_PARTIAL;
+    }
+
+    // The SETTINGS payload of an HTTP/1.1 request asking to switch to h2c, null when it does not or
+    // the HTTP2-Settings header is not valid base64url.
+    public static byte[] upgradeSettings(HTTPRequest request) {
+        if (request.getUpgrade() == null || request.getHttp2Settings() == null || !"HTTP/1.1".equals(request.getVersion())) {
+            return null;
+        }
+        boolean h2c = false;
+        for (String protocol : request.getUpgrade().split(",")) {
+            h2c |= protocol.strip().equalsIgnoreCase("h2c");
+        }
+        if (!h2c) {
+            return null;
+        }
+        try {
+            byte[] settings = Base64.getUrlDecoder().decode(request.getHttp2Settings());
+            return settings.length % 6 == 0 ? settings : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // After the 101 for Upgrade: h2c, the request that asked for it is stream 1, already answered.
+    // The client's preface is still to come.
+    public void upgrade(byte[] settings, HTTPRequest request, HTTPResponse response, long startNanos) {
+        try {
+            applySettings(settings, 0, settings.length);
+        } catch (ConnectionException e) {
+            fail(e);
+            return;
+        }
+        Stream stream = new Stream(1);
+        stream.request = request;
+        stream.remoteClosed = true;
+        streams.put(1, stream);
+        lastStreamId = 1;
+        respond(stream, response, startNanos);
+    }
+
+    // Consumes everything in the buffer, frames cut off at its end are kept until the rest arrives.
+    // Requests completed by these bytes are answered, their frames wait for produce.
+    public void receive(ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining() && !failed) {
+                if (prefaceReceived < PREFACE.length) {
+                    if (buffer.get() != PREFACE[prefaceReceived++]) {
+                        throw new ConnectionException(PROTOCOL_ERROR, "Invalid connection preface");
+                    }
+                    continue;
+                }
+                int needed = frameLength < FRAME_HEADER_SIZE ? FRAME_HEADER_SIZE - frameLength : FRAME_HEADER_SIZE + payloadLength() - frameLength;
+                int count = Math.min(needed, buffer.remaining());
+                buffer.get(frame, frameLength, count);
+                frameLength += count;
+                if (frameLength >= FRAME_HEADER_SIZE) {
+                    if (payloadLength() > MAX_FRAME_SIZE) {
+                        throw new ConnectionException(FRAME_SIZE_ERROR, "Frame larger than " + MAX_FRAME_SIZE + " bytes");
+                    }
+                    if (frameLength == FRAME_HEADER_SIZE + payloadLength()) {
+                        frameLength = 0;
+                        processFrame();
+                        if (control.size() > MAX_QUEUED_FRAMES) {
+                            throw new ConnectionException(ENHANCE_YOUR_CALM, "Too many frames waiting to be sent");
+                        }
+                    }
+                }
+            }
+        } catch (ConnectionException e) {
+            fail(e);
+        }
+        // after a connection error the rest is ignored
+        buffer.position(buffer.limit());
+    }
+
+    // Puts the frames that are ready into out, as many as fit whole: first the control frames and
+    // header blocks, then DATA from the streams in turn while the windows allow.
+    public void produce(ByteBuffer out) {
+        while (!control.isEmpty() && control.peek().length <= out.remaining()) {
+            out.put(control.poll());
+        }
+        if (!control.isEmpty()) {
+            return;
+        }
+        while (!sending.isEmpty() && sendWindow > 0) {
+            Stream stream = sending.peek();
+            if (stream.sendWindow <= 0) {
+                // a SETTINGS frame shrank the window after the stream was queued
+                sending.poll();
+                stream.blocked = true;
+                continue;
+            }
+            int length = (int) Math.min(Math.min(stream.remaining, MAX_FRAME_SIZE), Math.min(stream.sendWindow, sendWindow));
+            if (FRAME_HEADER_SIZE + length > out.remaining()) {
+                return;
+            }
+            sending.poll();
+            int frameStart = out.position();
+            boolean last = length == stream.remaining;
+            putFrameHeader(out, length, DATA, last ? END_STREAM : 0, stream.id);
+            try {
+                stream.copyBody(out, length);
+            } catch (IOException e) {
+                // the status is sent already, the client learns from the reset that the body is incomplete
+                out.position(frameStart);
+                resetStream(stream, INTERNAL_ERROR);
+                continue;
+            }
+            stream.remaining -= length;
+            stream.sendWindow -= length;
+            sendWindow -= length;
+            if (last) {
+                closeStream(stream);
+            } else if (stream.sendWindow > 0) {
+                sending.add(stream);
+            } else {
+                stream.blocked = true;
+            }
+        }
+    }
+
+    // Stops taking new streams, the ones open are still finished. Sent on shutdown and after an idle timeout.
+    public void goAway() {
+        goAway(NO_ERROR);
+    }
+
+    // streams are open: requests still arriving or responses still being sent
+    public boolean hasOpenStreams() {
+        return !streams.isEmpty();
+    }
+
+    // when the oldest request still arriving started, 0 when none is
+    public long getReadStarted() {
+        long started = 0;
+        for (Stream stream : streams.values()) {
+            if (!stream.remoteClosed && (started == 0 || stream.receiveStarted < started)) {
+                started = stream.receiveStarted;
+            }
+        }
+        return started;
+    }
+
+    // GOAWAY is sent and nothing else is left to send, the connection can be closed once the last frames are written
+    public boolean isClosed() {
+        return goingAway && streams.isEmpty() && control.isEmpty();
+    }
+
+    // releases the files of responses that were not sent in full
+    public void close() {
+        for (Stream stream : streams.values()) {
+            stream.closeFile();
+        }
+        streams.clear();
+        sending.clear();
+    }
+
+    private int payloadLength() {
+        return (frame[0] & 0xff) << 16 | (frame[1] & 0xff) << 8 | frame[2] & 0xff;
+    }
+
+    private void processFrame() throws ConnectionException {
+        int length = payloadLength();
+        int type = frame[3] & 0xff;
+        int flags = frame[4] & 0xff;
+        int streamId = readInt(frame, 5) & 0x7fffffff;
+        if (headerBlock != null && type != CONTINUATION) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Expected CONTINUATION");
+        }
+        if (!settingsReceived && type != SETTINGS) {
+            throw new ConnectionException(PROTOCOL_ERROR, "The preface must be followed by SETTINGS");
+        }
+        switch (type) {
+            case DATA -> onData(streamId, flags, length);
+            case HEADERS -> onHeaders(streamId, flags, length);
+            case PRIORITY -> {
+                // priorities are deprecated, streams share the connection in turn instead
+                if (streamId == 0) {
+                    throw new ConnectionException(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                }
+                if (length != 5) {
+                    throw new ConnectionException(FRAME_SIZE_ERROR, "PRIORITY of " + length + " bytes");
+                }
+            }
+            case RST_STREAM -> {
+                if (length != 4) {
+                    throw new ConnectionException(FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes");
+                }
+                if (streamId == 0 || streamId > lastStreamId) {
+                    throw new ConnectionException(PROTOCOL_ERROR, "RST_STREAM on an idle stream");
+                }
+                Stream stream = streams.remove(streamId);
+                if (stream != null) {
+                    sending.remove(stream);
+                    stream.closeFile();
+                }
+            }
+            case SETTINGS -> onSettings(streamId, flags, length);
+            case PUSH_PROMISE -> throw new ConnectionException(PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+            case PING -> {
+                if (streamId != 0) {
+                    throw new ConnectionException(PROTOCOL_ERROR, "PING on a stream");
+                }
+                if (length != 8) {
+                    throw new ConnectionException(FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+                }
+                if ((flags & ACK) == 0) {
+                    queueFrame(PING, ACK, 0, frame, FRAME_HEADER_SIZE, 8);
+                }
+            }
+            case GOAWAY -> {
+                if (streamId != 0) {
+                    throw new ConnectionException(PROTOCOL_ERROR, "GOAWAY on a stream");
+                }
+                if (length < 8) {
+                    throw new ConnectionException(FRAME_SIZE_ERROR, "GOAWAY of " + length + " bytes");
+                }
+                // the client is leaving, the streams it opened are still answered
+                goAway(NO_ERROR);
+            }
+            case WINDOW_UPDATE -> onWindowUpdate(streamId, length);
+            case CONTINUATION -> {
+                if (headerBlock == null || streamId != headerBlockStream) {
+                    throw new ConnectionException(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+                }
+                appendHeaderBlock(FRAME_HEADER_SIZE, FRAME_HEADER_SIZE + length);
+                if ((flags & END_HEADERS) != 0) {
+                    onHeaderBlock();
+                }
+            }
+            default -> {
+                // unknown frame types are ignored
+            }
+        }
+    }
+
+    private void onSettings(int streamId, int flags, int length) throws ConnectionException {
+        if (streamId != 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & ACK) != 0) {
+            if (length != 0) {
+                throw new ConnectionException(FRAME_SIZE_ERROR, "SETTINGS acknowledgement with a payload");
+            }
+            return;
+        }
+        if (length % 6 != 0) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+        }
+        applySettings(frame, FRAME_HEADER_SIZE, length);
+        settingsReceived = true;
+        queueFrame(SETTINGS, ACK, 0, frame, 0, 0);
+    }
+
+    private void applySettings(byte[] payload, int offset, int length) throws ConnectionException {
+        for (int i = offset; i < offset + length; i += 6) {
+            int id = (payload[i] & 0xff) << 8 | payload[i + 1] & 0xff;
+            long value = readInt(payload, i + 2) & 0xffffffffL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE -> encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                case SETTINGS_ENABLE_PUSH -> {
+                    // the server never pushes, only the value is checked
+                    if (value > 1) {
+                        throw new ConnectionException(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                    }
+                }
+                case SETTINGS_INITIAL_WINDOW_SIZE -> {
+                    if (value > Integer.MAX_VALUE) {
+                        throw new ConnectionException(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    }
+                    // the difference applies to the windows of the open streams, which can go negative
+                    long delta = value - peerInitialWindow;
+                    peerInitialWindow = (int) value;
+                    for (Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                        if (stream.sendWindow > Integer.MAX_VALUE) {
+                            throw new ConnectionException(FLOW_CONTROL_ERROR, "Stream window above 2^31-1");
+                        }
+                        unblock(stream);
+                    }
+                }
+                case SETTINGS_MAX_FRAME_SIZE -> {
+                    // frames up to the default size are sent either way
+                    if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new ConnectionException(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                    }
+                }
+                default -> {
+                    // SETTINGS_MAX_CONCURRENT_STREAMS and SETTINGS_MAX_HEADER_LIST_SIZE limit what the server
+                    // initiates and sends, it initiates no streams and sends small header lists
+                }
+            }
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws ConnectionException {
+        if (length != 4) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes");
+        }
+        int increment = readInt(frame, FRAME_HEADER_SIZE) & 0x7fffffff;
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw new ConnectionException(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+            }
+            sendWindow += increment;
+            if (sendWindow > Integer.MAX_VALUE) {
+                throw new ConnectionException(FLOW_CONTROL_ERROR, "Connection window above 2^31-1");
+            }
+            return;
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new ConnectionException(PROTOCOL_ERROR, "WINDOW_UPDATE on an idle stream");
+            }
+            // the stream is closed, updates may still be on their way
+            return;
+        }
+        if (increment == 0) {
+            resetStream(stream, PROTOCOL_ERROR);
+            return;
+        }
+        stream.sendWindow += increment;
+        if (stream.sendWindow > Integer.MAX_VALUE) {
+            resetStream(stream, FLOW_CONTROL_ERROR);
+            return;
+        }
+        unblock(stream);
+    }
+
+    private void unblock(Stream stream) {
+        if (stream.blocked && stream.sendWindow > 0) {
+            stream.blocked = false;
+            sending.add(stream);
+        }
+    }
+
+    private void onHeaders(int streamId, int flags, int length) throws ConnectionException {
+        if (streamId == 0 || streamId % 2 == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "HEADERS on stream " + streamId);
+        }
+        int offset = FRAME_HEADER_SIZE;
+        int end = FRAME_HEADER_SIZE + length;
+        if ((flags & PADDED) != 0) {
+            end -= padLength(length);
+            offset++;
+        }
+        if ((flags & PRIORITY_FLAG) != 0) {
+            offset += 5;
+        }
+        if (offset > end) {
+            throw new ConnectionException(PROTOCOL_ERROR, "HEADERS shorter than its padding and priority");
+        }
+        headerBlock = new ByteArrayOutputStream(end - offset);
+        headerBlockStream = streamId;
+        headerBlockEndsStream = (flags & END_STREAM) != 0;
+        appendHeaderBlock(offset, end);
+        if ((flags & END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void appendHeaderBlock(int offset, int end) throws ConnectionException {
+        if (headerBlock.size() + end - offset > MAX_HEADER_LIST_SIZE) {
+            throw new ConnectionException(ENHANCE_YOUR_CALM, "Header block exceeds " + MAX_HEADER_LIST_SIZE + " bytes");
+        }
+        headerBlock.write(frame, offset, end - offset);
+    }
+
+    // A complete header block: a new request, or the trailer fields ending a request body, which are
+    // not used. Every block is decoded, refused ones too, to keep the HPACK tables in step.
+    private void onHeaderBlock() throws ConnectionException {
+        byte[] block = headerBlock.toByteArray();
+        headerBlock = null;
+        List<String> fields = new ArrayList<>();
+        try {
+            decoder.decode(block, 0, block.length, fields, MAX_HEADER_LIST_SIZE);
+        } catch (Hpack.CompressionException e) {
+            throw new ConnectionException(COMPRESSION_ERROR, e.getMessage());
+        }
+        int streamId = headerBlockStream;
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            if (!headerBlockEndsStream || stream.remoteClosed) {
+                throw new ConnectionException(PROTOCOL_ERROR, "HEADERS on an open stream");
+            }
+            endOfRequest(stream);
+            return;
+        }
+        if (streamId <= lastStreamId) {
+            // a closed stream: trailers of a stream reset while they were on their way are dropped, but a
+            // request, which has pseudo-header fields, may not reuse the id of an earlier stream
+            boolean request = !headerBlockEndsStream;
+            for (int i = 0; i < fields.size() && !request; i += 2) {
+                request = fields.get(i).startsWith(":");
+            }
+            if (request) {
+                throw new ConnectionException(PROTOCOL_ERROR, "HEADERS reusing stream " + streamId);
+            }
+            return;
+        }
+        lastStreamId = streamId;
+        if (goingAway) {
+            // past the last stream announced in the GOAWAY, the client may retry it on a new connection
+            return;
+        }
+        if (streams.size() >= maxConcurrentStreams) {
+            queueReset(streamId, REFUSED_STREAM);
+            return;
+        }
+        openStream(streamId, fields, headerBlockEndsStream);
+    }
+
+    private void openStream(int streamId, List<String> fields, boolean endStream) {
+        Stream stream = new Stream(streamId);
+        streams.put(streamId, stream);
+        stream.remoteClosed = endStream;
+        byte[] header = translate(fields, stream, !endStream);
+        if (header == null) {
+            resetStream(stream, PROTOCOL_ERROR);
+            return;
+        }
+        parser.reset();
+        try {
+            if (!parser.parse(ByteBuffer.wrap(header))) {
+                throw new IllegalArgumentException("Incomplete request header");
+            }
+        } catch (HTTPRequestParser.HeaderTooLargeException e) {
+            respondEarly(stream, 431);
+            return;
+        } catch (IllegalArgumentException e) {
+            if (WebServer.isDebugEnabled()) {
+                System.out.println("printing request:\n" + e.getMessage());
+            }
+            respondEarly(stream, 400);
+            return;
+        }
+        stream.request = parser.getRequest();
+        if (stream.declaredLength > maxBodySize) {
+            respondEarly(stream, 413);
+            return;
+        }
+        if (endStream) {
+            answer(stream);
+        } else {
+            // the body's DATA frames are fed to the decoder as chunks
+            stream.body = new RequestBodyDecoder(stream.request, maxBodySize);
+        }
+    }
+
+    // The request as the HTTP/1.1 header text HTTPRequestParser reads, so HTTP/2 requests get the same
+    // parameters and validation; a body is announced as chunked. Null when the request is malformed:
+    // missing, repeated or misplaced pseudo-header fields, upper case names, connection specific
+    // fields, or characters that would end a line of the translation.
+    private static byte[] translate(List<String> fields, Stream stream, boolean hasBody) {
+        String method = null;
+        String scheme = null;
+        String path = null;
+        String authority = null;
+        StringBuilder headers = new StringBuilder(256);
+        boolean regular = false;
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name = fields.get(i);
+            String value = fields.get(i + 1);
+            if (!isValidValue(value)) {
+                return null;
+            }
+            if (name.startsWith(":")) {
+                if (regular) {
+                    return null;
+                }
+                switch (name) {
+                    case ":method" -> {
+                        if (method != null) {
+                            return null;
+                        }
+                        method = value;
+                    }
+                    case ":scheme" -> {
+                        if (scheme != null) {
+                            return null;
+                        }
+                        scheme = value;
+                    }
+                    case ":path" -> {
+                        if (path != null) {
+                            return null;
+                        }
+                        path = value;
+                    }
+                    case ":authority" -> {
+                        if (authority != null) {
+                            return null;
+                        }
+                        authority = value;
+                    }
+                    default -> {
+                        return null;
+                    }
+                }
+                continue;
+            }
+            regular = true;
+            if (!isValidName(name)) {
+                return null;
+            }
+            switch (name) {
+                case "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade" -> {
+                    return null;
+                }
+                case "te" -> {
+                    if (!value.equals("trailers")) {
+                        return null;
+                    }
+                    continue;
+                }
+                case "content-length" -> {
+                    // DATA frames carry the body, the length is only checked against them
+                    if (value.isEmpty() || value.length() > 18 || !value.chars().allMatch(c -> c >= '0' && c <= '9')) {
+                        return null;
+                    }
+                    stream.declaredLength = Long.parseLong(value);
+                    continue;
+                }
+                default -> {
+                }
+            }
+            headers.append(name).append(": ").append(value).append("\r\n");
+        }
+        if (method == null || scheme == null || path == null || path.isEmpty() || hasWhitespace(method) || hasWhitespace(path)
+                || !hasBody && stream.declaredLength > 0) {
+            return null;
+        }
+        StringBuilder text = new StringBuilder(headers.length() + 64);
+        text.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        if (authority != null) {
+            text.append("host: ").append(authority).append("\r\n");
+        }
+        text.append(headers);
+        if (hasBody) {
+            text.append("transfer-encoding: chunked\r\n");
+        }
+        text.append("\r\n");
+        return text.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isValidName(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c <= ' ' || c >= 0x7f || c == ':' || c >= 'A' && c <= 'Z') {
+                return false;
+            }
+        }
+        return !name.isEmpty();
+    }
+
+    private static boolean isValidValue(String value) {
+        return value.indexOf('\r') < 0 && value.indexOf('\n') < 0 && value.indexOf('\0') < 0;
+    }
+
+    private static boolean hasWhitespace(String value) {
+        return value.indexOf(' ') >= 0 || value.indexOf('\t') >= 0;
+    }
+
+    private void onData(int streamId, int flags, int length) throws ConnectionException {
+        if (streamId == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int offset = FRAME_HEADER_SIZE;
+        int end = FRAME_HEADER_SIZE + length;
+        if ((flags & PADDED) != 0) {
+            end -= padLength(length);
+            offset++;
+        }
+        // the whole frame counts against the windows, padding included
+        if (length > receiveWindow) {
+            throw new ConnectionException(FLOW_CONTROL_ERROR, "DATA beyond the connection window");
+        }
+        receiveWindow -= length;
+        unacknowledged += length;
+        if (unacknowledged >= DEFAULT_WINDOW_SIZE / 2) {
+            queueWindowUpdate(0, unacknowledged);
+            receiveWindow += unacknowledged;
+            unacknowledged = 0;
+        }
+        Stream stream = streams.get(streamId);
+        if (stream != null && stream.discarding) {
+            if ((flags & END_STREAM) != 0) {
+                stream.remoteClosed = true;
+            }
+            return;
+        }
+        if (stream == null || stream.remoteClosed) {
+            if (streamId > lastStreamId) {
+                throw new ConnectionException(PROTOCOL_ERROR, "DATA on an idle stream");
+            }
+            if (stream != null) {
+                resetStream(stream, STREAM_CLOSED);
+            }
+            // otherwise the stream was reset, frames sent before the client learned of it are dropped
+            return;
+        }
+        if (length > stream.receiveWindow) {
+            resetStream(stream, FLOW_CONTROL_ERROR);
+            return;
+        }
+        stream.receiveWindow -= length;
+        stream.received += end - offset;
+        if (end > offset) {
+            try {
+                // each frame is one chunk of the chunked body the decoder was told about
+                stream.body.feed(ByteBuffer.wrap((Integer.toHexString(end - offset) + "\r\n").getBytes(StandardCharsets.US_ASCII)));
+                stream.body.feed(ByteBuffer.wrap(frame, offset, end - offset));
+                stream.body.feed(ByteBuffer.wrap(CRLF));
+            } catch (RequestBodyDecoder.BodyTooLargeException e) {
+                respondEarly(stream, 413);
+                return;
+            } catch (IllegalArgumentException e) {
+                respondEarly(stream, 400);
+                return;
+            }
+        }
+        if ((flags & END_STREAM) != 0) {
+            endOfRequest(stream);
+            return;
+        }
+        stream.unacknowledged += length;
+        if (stream.unacknowledged >= DEFAULT_WINDOW_SIZE / 2) {
+            queueWindowUpdate(stream.id, stream.unacknowledged);
+            stream.receiveWindow += stream.unacknowledged;
+            stream.unacknowledged = 0;
+        }
+    }
+
+    private int padLength(int length) throws ConnectionException {
+        int padLength = length > 0 ? frame[FRAME_HEADER_SIZE] & 0xff : 0;
+        if (length == 0 || padLength >= length) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Padding longer than the frame");
+        }
+        return padLength;
+    }
+
+    // the client's last frame for the stream has arrived, the request is answered
+    private void endOfRequest(Stream stream) {
+        stream.remoteClosed = true;
+        if (stream.discarding) {
+            return;
+        }
+        if (stream.declaredLength >= 0 && stream.declaredLength != stream.received) {
+            resetStream(stream, PROTOCOL_ERROR);
+            return;
+        }
+        if (stream.body != null) {
+            try {
+                stream.body.feed(ByteBuffer.wrap(LAST_CHUNK));
+            } catch (IllegalArgumentException e) {
+                respond(stream, WebServer.errorResponse(400), stream.start);
+                return;
+            }
+            stream.body = null;
+        }
+        answer(stream);
+    }
+
+    // the whole request is in, it is answered here or, when that may block on the disk, through offload
+    private void answer(Stream stream) {
+        if (offload == null || !WebServer.readsFromDisk(stream.request)) {
+            respond(stream, WebServer.processRequest(stream.request, false), stream.start);
+            return;
+        }
+        offload.submit(stream.request, response -> {
+            // the stream may have been reset or the connection failed in the meantime
+            if (!failed && streams.get(stream.id) == stream) {
+                respond(stream, response, stream.start);
+            }
+        });
+    }
+
+    // An error found before the whole request arrived. Once the response is out the client is told
+    // with a reset without error to stop sending the rest.
+    private void respondEarly(Stream stream, int statusCode) {
+        stream.discarding = true;
+        stream.body = null;
+        respond(stream, WebServer.errorResponse(statusCode), stream.start);
+    }
+
+    // queues the response's header block and, when it has a body, the stream for its DATA frames
+    private void respond(Stream stream, HTTPResponse response, long startNanos) {
+        WebServer.logAccess(remoteAddress, stream.request, response, startNanos);
+        if (response.isSendContent()) {
+            try {
+                response.visitBody(new HTTPResponse.BodyVisitor() {
+                    @Override
+                    public void bytes(byte[] bytes, int offset, int length) {
+                        stream.pieces.add(new BodyPiece(bytes, offset, null, 0, length));
+                        stream.remaining += length;
+                    }
+
+                    @Override
+                    public void fileRegion(File file, long position, long length) {
+                        stream.pieces.add(new BodyPiece(null, 0, file, position, length));
+                        stream.remaining += length;
+                    }
+                });
+            } catch (IOException e) {
+                stream.pieces.clear();
+                stream.remaining = 0;
+                response = WebServer.errorResponse(500);
+            }
+        }
+        List<String> fields = new ArrayList<>();
+        fields.add(":status");
+        fields.add(Integer.toString(response.getStatusCode()));
+        response.forEachHttp2Field((name, value) -> {
+            fields.add(name);
+            fields.add(value);
+        });
+        boolean endStream = stream.remaining == 0;
+        queueHeaders(stream.id, encoder.encode(fields), endStream);
+        if (endStream) {
+            closeStream(stream);
+        } else if (stream.sendWindow > 0) {
+            sending.add(stream);
+        } else {
+            stream.blocked = true;
+        }
+    }
+
+    // the response is complete, the stream is done once the request is too
+    private void closeStream(Stream stream) {
+        stream.closeFile();
+        if (stream.remoteClosed) {
+            streams.remove(stream.id);
+        } else if (stream.discarding) {
+            streams.remove(stream.id);
+            queueReset(stream.id, NO_ERROR);
+        }
+    }
+
+    private void resetStream(Stream stream, int errorCode) {
+        streams.remove(stream.id);
+        sending.remove(stream);
+        stream.closeFile();
+        queueReset(stream.id, errorCode);
+    }
+
+    private void goAway(int errorCode) {
+        if (goingAway && errorCode == NO_ERROR) {
+            return;
+        }
+        goingAway = true;
+        byte[] payload = new byte[8];
+        putInt(payload, 0, lastStreamId);
+        putInt(payload, 4, errorCode);
+        queueFrame(GOAWAY, 0, 0, payload, 0, payload.length);
+    }
+
+    // a connection error: the streams are abandoned and only the GOAWAY is left to send
+    private void fail(ConnectionException e) {
+        if (WebServer.isDebugEnabled()) {
+            System.out.println("HTTP/2 connection error: " + e.getMessage());
+        }
+        failed = true;
+        headerBlock = null;
+        close();
+        control.clear();
+        goAway(e.errorCode);
+    }
+
+    // a header block split into HEADERS and CONTINUATION frames, queued together so nothing comes between them
+    private void queueHeaders(int streamId, byte[] block, boolean endStream) {
+        int offset = 0;
+        do {
+            int length = Math.min(block.length - offset, MAX_FRAME_SIZE);
+            boolean last = offset + length == block.length;
+            int type = offset == 0 ? HEADERS : CONTINUATION;
+            int flags = (last ? END_HEADERS : 0) | (endStream && offset == 0 ? END_STREAM : 0);
+            queueFrame(type, flags, streamId, block, offset, length);
+            offset += length;
+        } while (offset < block.length);
+    }
+
+    private void queueReset(int streamId, int errorCode) {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, errorCode);
+        queueFrame(RST_STREAM, 0, streamId, payload, 0, payload.length);
+    }
+
+    private void queueWindowUpdate(int streamId, int increment) {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        queueFrame(WINDOW_UPDATE, 0, streamId, payload, 0, payload.length);
+    }
+
+    private void queueFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) {
+        ByteBuffer bytes = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+        putFrameHeader(bytes, length, type, flags, streamId);
+        bytes.put(payload, offset, length);
+        control.add(bytes.array());
+    }
+
+    private static void putFrameHeader(ByteBuffer out, int length, int type, int flags, int streamId) {
+        out.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+        out.put((byte) type).put((byte) flags).putInt(streamId);
+    }
+
+    private static void putSetting(byte[] payload, int offset, int id, int value) {
+        payload[offset] = (byte) (id >>> 8);
+        payload[offset + 1] = (byte) id;
+        putInt(payload, offset + 2, value);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8 | bytes[offset + 3] & 0xff;
+    }
+}
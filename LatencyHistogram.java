@@ -0,0 +1,117 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear histogram in the style of HdrHistogram: values below 128 get a bucket each, larger
+// values share buckets 1/64 of their power of two wide, so every recorded value is kept within
+// about 1.6% over the whole range. Recording is lock-free and safe from any number of threads:
+// the buckets are LongAdders, so threads recording into the same one do not contend on a single
+// cache line, and the maximum is only written when a value exceeds it.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    // enough buckets for any positive long
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF_COUNT;
+
+    // created on first use, most of the range is never recorded into
+    private final AtomicReferenceArray<LongAdder> counts = new AtomicReferenceArray<>(BUCKET_COUNT);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalValue = new LongAdder();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        bucket(bucketIndex(value)).increment();
+        totalCount.increment();
+        totalValue.add(value);
+        long max = maxValue.get();
+        while (value > max && !maxValue.weakCompareAndSetVolatile(max, value)) {
+            max = maxValue.get();
+        }
+    }
+
+    private LongAdder bucket(int index) {
+        LongAdder bucket = counts.get(index);
+        if (bucket == null) {
+            counts.compareAndSet(index, null, new LongAdder());
+            bucket = counts.get(index);
+        }
+        return bucket;
+    }
+
+    private long countAt(int index) {
+        LongAdder bucket = counts.get(index);
+        return bucket == null ? 0 : bucket.sum();
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        int mantissa = (int) (value >>> shift);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + (mantissa - SUB_BUCKET_HALF_COUNT);
+    }
+
+    // the largest value that falls into the bucket
+    private static long highestValueInBucket(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+        long mantissa = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0.0 : totalValue.sum() / (double) count;
+    }
+
+    public long getSum() {
+        return totalValue.sum();
+    }
+
+    // e.g. getValueAtPercentile(99.9), reported as the upper end of the bucket holding that value
+    public long getValueAtPercentile(double percentile) {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += countAt(i);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += countAt(i);
+            if (seen >= target) {
+                return Math.min(highestValueInBucket(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            LongAdder bucket = counts.get(i);
+            if (bucket != null) {
+                bucket.reset();
+            }
+        }
+        totalCount.reset();
+        totalValue.reset();
+        maxValue.set(0);
+    }
+}
@@ -0,0 +1,252 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Load test driver: opens N keep-alive connections to a running server over loopback, replays a
+// weighted mix of requests and reports throughput and latency percentiles.
+// Usage: java LoadGenerator [--host localhost] [--port 8080] [--connections 16] [--duration 10]
+//                           [--warmup 2] [--mix get=35,image=30,head=10,post=15,chunked=10]
+// Mix entries are get (index.html), image (the pngs and the icon), head, post (params_info.html)
+// and chunked (index.html with the chunked: yes header).
+public class LoadGenerator {
+    private static final String[] IMAGES = {"/alice.png", "/bob1.png", "/favicon.ico"};
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int duration;
+    private final int warmup;
+    private final List<RequestType> mix;
+    private final int totalWeight;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final ConcurrentHashMap<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private volatile boolean recording;
+
+    private static class RequestType {
+        private final String name;
+        private final int weight;
+
+        RequestType(String name, int weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+    }
+
+    public LoadGenerator(String host, int port, int connections, int duration, int warmup, String mix) {
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.duration = duration;
+        this.warmup = warmup;
+        this.mix = new ArrayList<>();
+        int weights = 0;
+        for (String entry : mix.split(",")) {
+            String[] nameAndWeight = entry.split("=");
+            String name = nameAndWeight[0].strip();
+            if (!List.of("get", "image", "head", "post", "chunked").contains(name)) {
+                throw new IllegalArgumentException("Unknown request type in mix: " + name);
+            }
+            int weight = nameAndWeight.length > 1 ? Integer.parseInt(nameAndWeight[1].strip()) : 1;
+            this.mix.add(new RequestType(name, weight));
+            weights += weight;
+        }
+        if (weights <= 0) {
+            throw new IllegalArgumentException("The request mix has no weight");
+        }
+        this.totalWeight = weights;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new TreeMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                System.out.println("Unexpected argument: " + args[i]);
+                return;
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        LoadGenerator generator = new LoadGenerator(
+                options.getOrDefault("host", "localhost"),
+                Integer.parseInt(options.getOrDefault("port", "8080")),
+                Integer.parseInt(options.getOrDefault("connections", "16")),
+                Integer.parseInt(options.getOrDefault("duration", "10")),
+                Integer.parseInt(options.getOrDefault("warmup", "2")),
+                options.getOrDefault("mix", "get=35,image=30,head=10,post=15,chunked=10"));
+        generator.run();
+    }
+
+    public void run() throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmup + duration);
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            clients.add(Thread.ofVirtual().name("load-client-" + i).start(() -> runClient(end)));
+        }
+        System.out.println("Warming up for " + warmup + " s with " + connections + " connections...");
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+        recording = true;
+        long start = System.nanoTime();
+        for (Thread client : clients) {
+            client.join();
+        }
+        report((System.nanoTime() - start) / 1e9);
+    }
+
+    private void runClient(long end) {
+        byte[] buffer = new byte[16384];
+        while (System.nanoTime() < end) {
+            try (Socket socket = new Socket(host, port)) {
+                socket.setSoTimeout(10000);
+                OutputStream out = socket.getOutputStream();
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                boolean open = true;
+                while (open && System.nanoTime() < end) {
+                    RequestType type = pick();
+                    long started = System.nanoTime();
+                    out.write(buildRequest(type));
+                    out.flush();
+                    open = readResponse(in, type.name.equals("head"), buffer);
+                    if (recording) {
+                        latency.record(System.nanoTime() - started);
+                    }
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                // broken connections and malformed responses both count as errors
+                if (recording) {
+                    errors.increment();
+                }
+            }
+        }
+    }
+
+    private RequestType pick() {
+        int value = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (RequestType type : mix) {
+            value -= type.weight;
+            if (value < 0) {
+                return type;
+            }
+        }
+        return mix.get(mix.size() - 1);
+    }
+
+    private byte[] buildRequest(RequestType type) {
+        String request = switch (type.name) {
+            case "image" -> "GET " + IMAGES[ThreadLocalRandom.current().nextInt(IMAGES.length)] + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n";
+            case "head" -> "HEAD /index.html HTTP/1.1\r\nHost: " + host + "\r\n\r\n";
+            case "post" -> {
+                String body = "sender=load&receiver=test&subject=s" + ThreadLocalRandom.current().nextInt(100);
+                yield "POST /params_info.html HTTP/1.1\r\nHost: " + host + "\r\nContent-Type: application/x-www-form-urlencoded\r\n"
+                        + "Content-Length: " + body.length() + "\r\n\r\n" + body;
+            }
+            case "chunked" -> "GET /index.html HTTP/1.1\r\nHost: " + host + "\r\nchunked: yes\r\n\r\n";
+            default -> "GET /index.html HTTP/1.1\r\nHost: " + host + "\r\n\r\n";
+        };
+        return request.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // reads one response, returns false when the server closes the connection after it
+    private boolean readResponse(InputStream in, boolean isHead, byte[] buffer) throws IOException {
+        String statusLine = readLine(in);
+        if (statusLine == null) {
+            throw new IOException("Connection closed before the response");
+        }
+        String[] statusParts = statusLine.split(" ");
+        int status = Integer.parseInt(statusParts[1]);
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean keepAlive = true;
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            String lower = line.toLowerCase();
+            if (lower.startsWith("content-length:")) {
+                contentLength = Long.parseLong(line.substring("content-length:".length()).strip());
+            } else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+                chunked = true;
+            } else if (lower.startsWith("connection:") && lower.contains("close")) {
+                keepAlive = false;
+            }
+        }
+
+        long received = 0;
+        if (!isHead && chunked) {
+            long chunkSize;
+            do {
+                String sizeLine = readLine(in);
+                if (sizeLine == null) {
+                    throw new IOException("Connection closed inside a chunked body");
+                }
+                int extension = sizeLine.indexOf(';');
+                chunkSize = Long.parseLong((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).strip(), 16);
+                received += skip(in, chunkSize, buffer);
+                // the CRLF after the chunk, or the trailers after the last one
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    // trailer fields are ignored
+                }
+            } while (chunkSize > 0);
+        } else if (!isHead && contentLength > 0) {
+            received = skip(in, contentLength, buffer);
+        }
+
+        if (recording) {
+            statusCounts.computeIfAbsent(status, key -> new LongAdder()).increment();
+            bytesReceived.add(received);
+        }
+        return keepAlive;
+    }
+
+    private long skip(InputStream in, long length, byte[] buffer) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new IOException("Connection closed inside the body");
+            }
+            remaining -= read;
+        }
+        return length;
+    }
+
+    private String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return b < 0 && line.length() == 0 ? null : line.toString();
+    }
+
+    private void report(double seconds) {
+        long requests = latency.getCount();
+        System.out.println();
+        System.out.printf("duration:      %.1f s%n", seconds);
+        System.out.println("connections:   " + connections);
+        System.out.println("requests:      " + requests);
+        System.out.println("errors:        " + errors.sum());
+        System.out.printf("throughput:    %.1f req/s, %.2f MB/s%n", requests / seconds, bytesReceived.sum() / seconds / (1024 * 1024));
+        System.out.print("statuses:     ");
+        new TreeMap<>(statusCounts).forEach((status, count) -> System.out.print(" " + status + "=" + count.sum()));
+        System.out.println();
+        System.out.println("latency (ms):");
+        System.out.printf("  mean   %10.3f%n", latency.getMean() / 1e6);
+        for (double percentile : new double[] {50, 90, 99, 99.9}) {
+            System.out.printf("  p%-5s %10.3f%n", percentile == 99.9 ? "99.9" : String.valueOf((int) percentile), latency.getValueAtPercentile(percentile) / 1e6);
+        }
+        System.out.printf("  max    %10.3f%n", latency.getMax() / 1e6);
+    }
+}
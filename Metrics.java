@@ -0,0 +1,208 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+// Server wide counters, updated on the request path with LongAdders so handler threads do not
+// contend, and rendered on demand in the Prometheus text format or as JSON. Latencies are kept in a
+// LatencyHistogram and reported as quantiles over the server's lifetime.
+public class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+
+    private final long startTime = System.currentTimeMillis();
+    // indexed by status code
+    private final LongAdder[] responses = new LongAdder[600];
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder rejectedTasks = new LongAdder();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    // one executor per acceptor group
+    private volatile List<ExecutorService> executors = List.of();
+    private volatile FileCache fileCache;
+    private volatile AccessLog accessLog;
+
+    public Metrics() {
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = new LongAdder();
+        }
+    }
+
+    public void setExecutors(List<ExecutorService> executors) {
+        this.executors = executors;
+    }
+
+    public void setFileCache(FileCache fileCache) {
+        this.fileCache = fileCache;
+    }
+
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    public void recordResponse(int statusCode, long bytes, long durationNanos) {
+        if (statusCode >= 100 && statusCode < responses.length) {
+            responses[statusCode].increment();
+        }
+        bytesSent.add(bytes);
+        latency.record(durationNanos);
+    }
+
+    public void connectionOpened() {
+        connectionsOpened.increment();
+        activeConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    public void taskRejected() {
+        rejectedTasks.increment();
+    }
+
+    // a connection answered with 503 by the acceptor, because of a connection limit or a full queue
+    public void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public void writePrometheus(OutputStream out) throws IOException {
+        StringBuilder text = new StringBuilder(2048);
+        metric(text, "http_server_uptime_seconds", "gauge", "Seconds since the server started.",
+                (System.currentTimeMillis() - startTime) / 1000.0);
+
+        text.append("# HELP http_responses_total Responses sent, by status code.\n");
+        text.append("# TYPE http_responses_total counter\n");
+        for (int status = 100; status < responses.length; status++) {
+            long count = responses[status].sum();
+            if (count > 0) {
+                text.append("http_responses_total{status=\"").append(status).append("\"} ").append(count).append('\n');
+            }
+        }
+        metric(text, "http_response_body_bytes_total", "counter", "Body bytes sent.", bytesSent.sum());
+
+        text.append("# HELP http_request_duration_seconds Time from a complete request header to the written response.\n");
+        text.append("# TYPE http_request_duration_seconds summary\n");
+        for (double quantile : QUANTILES) {
+            text.append("http_request_duration_seconds{quantile=\"").append(quantile).append("\"} ")
+                    .append(latency.getValueAtPercentile(quantile * 100) / 1e9).append('\n');
+        }
+        text.append("http_request_duration_seconds_sum ").append(latency.getSum() / 1e9).append('\n');
+        text.append("http_request_duration_seconds_count ").append(latency.getCount()).append('\n');
+
+        metric(text, "http_connections_opened_total", "counter", "Connections accepted.", connectionsOpened.sum());
+        metric(text, "http_connections_active", "gauge", "Connections currently open.", activeConnections.sum());
+        metric(text, "http_connections_rejected_total", "counter", "Connections answered with 503 by the acceptor.", rejectedConnections.sum());
+
+        List<ThreadPoolExecutor> pools = pools();
+        if (!pools.isEmpty()) {
+            groupMetric(text, pools, "executor_pool_threads", "gauge", "Threads in the handler pool.", ThreadPoolExecutor::getPoolSize);
+            groupMetric(text, pools, "executor_pool_max_threads", "gauge", "Largest allowed number of handler threads.", ThreadPoolExecutor::getMaximumPoolSize);
+            groupMetric(text, pools, "executor_active_threads", "gauge", "Handler threads busy with a connection.", ThreadPoolExecutor::getActiveCount);
+            groupMetric(text, pools, "executor_queue_size", "gauge", "Connections waiting for a handler thread.", pool -> pool.getQueue().size());
+            groupMetric(text, pools, "executor_completed_tasks_total", "counter", "Connections handled to completion.", ThreadPoolExecutor::getCompletedTaskCount);
+        }
+        metric(text, "executor_rejected_tasks_total", "counter", "Connections the executor refused.", rejectedTasks.sum());
+
+        FileCache cache = fileCache;
+        if (cache != null) {
+            metric(text, "file_cache_hits_total", "counter", "File cache hits.", cache.getHits());
+            metric(text, "file_cache_misses_total", "counter", "File cache misses.", cache.getMisses());
+            metric(text, "file_cache_evictions_total", "counter", "Files evicted from the cache.", cache.getEvictions());
+            metric(text, "file_cache_bytes", "gauge", "Bytes held by the file cache.", cache.getCachedBytes());
+            metric(text, "file_cache_entries", "gauge", "Files held by the file cache.", cache.getSize());
+        }
+        AccessLog log = accessLog;
+        if (log != null) {
+            metric(text, "access_log_dropped_total", "counter", "Access log entries dropped because the writer fell behind.", log.getDropped());
+        }
+        out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private List<ThreadPoolExecutor> pools() {
+        return executors.stream().filter(ThreadPoolExecutor.class::isInstance).map(ThreadPoolExecutor.class::cast).toList();
+    }
+
+    // one sample per acceptor group, labelled with the group's index
+    private static void groupMetric(StringBuilder text, List<ThreadPoolExecutor> pools, String name, String type, String help,
+                                    ToLongFunction<ThreadPoolExecutor> value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        for (int i = 0; i < pools.size(); i++) {
+            text.append(name).append("{group=\"").append(i).append("\"} ").append(value.applyAsLong(pools.get(i))).append('\n');
+        }
+    }
+
+    private static void metric(StringBuilder text, String name, String type, String help, double value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        text.append(name).append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            text.append((long) value);
+        } else {
+            text.append(value);
+        }
+        text.append('\n');
+    }
+
+    public void writeJson(OutputStream out) throws IOException {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\n  \"uptimeSeconds\": ").append((System.currentTimeMillis() - startTime) / 1000.0);
+        json.append(",\n  \"responses\": {");
+        String separator = "";
+        for (int status = 100; status < responses.length; status++) {
+            long count = responses[status].sum();
+            if (count > 0) {
+                json.append(separator).append('"').append(status).append("\": ").append(count);
+                separator = ", ";
+            }
+        }
+        json.append("},\n  \"bodyBytes\": ").append(bytesSent.sum());
+        json.append(",\n  \"latencyMillis\": {\"count\": ").append(latency.getCount())
+                .append(", \"mean\": ").append(latency.getMean() / 1e6);
+        for (int i = 0; i < QUANTILES.length; i++) {
+            json.append(", \"").append(PERCENTILE_NAMES[i]).append("\": ").append(latency.getValueAtPercentile(QUANTILES[i] * 100) / 1e6);
+        }
+        json.append(", \"max\": ").append(latency.getMax() / 1e6).append('}');
+        json.append(",\n  \"connections\": {\"opened\": ").append(connectionsOpened.sum())
+                .append(", \"active\": ").append(activeConnections.sum())
+                .append(", \"rejected\": ").append(rejectedConnections.sum()).append('}');
+        json.append(",\n  \"executor\": {\"groups\": [");
+        List<ThreadPoolExecutor> pools = pools();
+        for (int i = 0; i < pools.size(); i++) {
+            ThreadPoolExecutor pool = pools.get(i);
+            json.append(i == 0 ? "" : ", ")
+                    .append("{\"poolThreads\": ").append(pool.getPoolSize())
+                    .append(", \"maxThreads\": ").append(pool.getMaximumPoolSize())
+                    .append(", \"activeThreads\": ").append(pool.getActiveCount())
+                    .append(", \"queueSize\": ").append(pool.getQueue().size())
+                    .append(", \"completedTasks\": ").append(pool.getCompletedTaskCount()).append('}');
+        }
+        json.append("], \"rejectedTasks\": ").append(rejectedTasks.sum()).append('}');
+        FileCache cache = fileCache;
+        if (cache != null) {
+            json.append(",\n  \"fileCache\": {\"hits\": ").append(cache.getHits())
+                    .append(", \"misses\": ").append(cache.getMisses())
+                    .append(", \"evictions\": ").append(cache.getEvictions())
+                    .append(", \"bytes\": ").append(cache.getCachedBytes())
+                    .append(", \"entries\": ").append(cache.getSize()).append('}');
+        }
+        AccessLog log = accessLog;
+        if (log != null) {
+            json.append(",\n  \"accessLogDropped\": ").append(log.getDropped());
+        }
+        json.append("\n}\n");
+        out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,836 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Non-blocking engine: the acceptor hands sockets to a few selector event loops,
+// which parse requests as bytes arrive and write responses without blocking.
+// With a TlsContext a second acceptor serves HTTPS on tlsPort through TlsChannels.
+// HTTP/2 connections are served by an Http2Connection fed from the same read buffer.
+// Requests that have to read a file from disk are answered on a virtual thread, the event
+// loop carries on with other connections and sends the response once it is handed back.
+public class NioEngine {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int IDLE_CHECK_INTERVAL = 1000;
+    private static final int DRAIN_CHECK_INTERVAL = 50;
+
+    private final int port;
+    private final int tlsPort;
+    private final TlsContext tlsContext;
+    private final int keepAliveTimeout;
+    private final int maxKeepAliveRequests;
+    private final long maxBodySize;
+    private final int readTimeout;
+    private final int writeTimeout;
+    private final ConnectionLimiter connectionLimiter;
+    private final int http2MaxStreams;
+    private final EventLoop[] eventLoops;
+    // the disk reads themselves are bounded by maxFileReads
+    private final ExecutorService fileReaders = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("nio-file-reader-", 0).factory());
+    private ServerSocketChannel serverChannel;
+    private ServerSocketChannel tlsServerChannel;
+    private volatile boolean draining;
+    // counted down by each event loop once its last connection is closed
+    private final CountDownLatch drained;
+
+    // tlsContext is null when HTTPS is off, http2MaxStreams is 0 when HTTP/2 is off
+    public NioEngine(int port, int tlsPort, TlsContext tlsContext, int ioThreads, int keepAliveTimeout, int maxKeepAliveRequests,
+                     long maxBodySize, int readTimeout, int writeTimeout, ConnectionLimiter connectionLimiter, int http2MaxStreams)
+            throws IOException {
+        this.port = port;
+        this.tlsPort = tlsPort;
+        this.tlsContext = tlsContext;
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.maxKeepAliveRequests = maxKeepAliveRequests;
+        this.maxBodySize = maxBodySize;
+        this.readTimeout = readTimeout;
+        this.writeTimeout = writeTimeout;
+        this.connectionLimiter = connectionLimiter;
+        this.http2MaxStreams = http2MaxStreams;
+        this.eventLoops = new EventLoop[ioThreads];
+        this.drained = new CountDownLatch(ioThreads);
+        for (int i = 0; i < ioThreads; i++) {
+            eventLoops[i] = new EventLoop();
+        }
+    }
+
+    public void run() throws IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            Thread thread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        if (tlsContext != null) {
+            tlsServerChannel = ServerSocketChannel.open();
+            tlsServerChannel.bind(new InetSocketAddress(tlsPort));
+            Thread tlsAcceptor = new Thread(() -> {
+                try {
+                    accept(tlsServerChannel, tlsContext);
+                } catch (IOException e) {
+                    if (!draining) {
+                        System.out.println("Something went wrong with the input/output");
+                    }
+                }
+            }, "nio-tls-acceptor");
+            tlsAcceptor.setDaemon(true);
+            tlsAcceptor.start();
+        }
+        System.out.println("Server listening on port " + port + (tlsContext != null ? ", HTTPS on port " + tlsPort : "")
+                + " (nio, " + eventLoops.length + " event loops)\n");
+        accept(serverChannel, null);
+    }
+
+    private void accept(ServerSocketChannel server, TlsContext tls) throws IOException {
+        int next = 0;
+        while (true) {
+            SocketChannel channel = server.accept();
+            String remoteAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+            // connections over the limits are answered with 503 before they cost an event loop anything
+            if (!connectionLimiter.tryAcquire(remoteAddress)) {
+                WebServer.rejectConnection(channel, remoteAddress, tls != null);
+                continue;
+            }
+            TlsChannel tlsChannel = null;
+            if (tls != null) {
+                // handshake messages and records are separate small writes, Nagle would hold them back
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                tlsChannel = tls.newChannel(channel);
+            }
+            eventLoops[next].register(new Connection(channel, remoteAddress, tlsChannel));
+            next = (next + 1) % eventLoops.length;
+        }
+    }
+
+    // Stops accepting and waits up to timeoutMillis for the event loops to finish the requests in
+    // flight. Idle keep-alive connections are closed right away, the others after their response.
+    public void shutdown(long timeoutMillis) {
+        draining = true;
+        try {
+            serverChannel.close();
+            if (tlsServerChannel != null) {
+                tlsServerChannel.close();
+            }
+        } catch (IOException e) {
+            // not accepting either way
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.selector.wakeup();
+        }
+        try {
+            drained.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Connection> pendingConnections = new ConcurrentLinkedQueue<>();
+        // responses computed by the file readers, run on the loop
+        private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+        private long lastIdleCheck = System.currentTimeMillis();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(Connection connection) {
+            connection.eventLoop = this;
+            pendingConnections.add(connection);
+            selector.wakeup();
+        }
+
+        void execute(Runnable completion) {
+            completions.add(completion);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(draining ? DRAIN_CHECK_INTERVAL : IDLE_CHECK_INTERVAL);
+                    registerPendingConnections();
+                    runCompletions();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                    closeIdleConnections();
+                    if (draining && drain()) {
+                        drained.countDown();
+                        return;
+                    }
+                } catch (IOException e) {
+                    System.out.println("Something went wrong with the input/output");
+                }
+            }
+        }
+
+        // closes the connections with nothing in flight, true once none are left
+        private boolean drain() {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && key.isValid() && connection.http2 != null) {
+                    // the streams already open are finished, the connection closes after the last one
+                    connection.goAway();
+                    continue;
+                }
+                if (connection == null || !key.isValid() || connection.isWriting() || connection.readStarted != 0
+                        || connection.awaitingResponse) {
+                    continue;
+                }
+                try {
+                    // a request that arrived since the last select is still answered
+                    connection.read();
+                } catch (IOException e) {
+                    connection.close();
+                    continue;
+                }
+                if (key.isValid() && !connection.isWriting() && connection.readStarted == 0) {
+                    connection.close();
+                }
+            }
+            return pendingConnections.isEmpty() && selector.keys().stream().noneMatch(SelectionKey::isValid);
+        }
+
+        private void runCompletions() {
+            Runnable completion;
+            while ((completion = completions.poll()) != null) {
+                completion.run();
+            }
+        }
+
+        private void registerPendingConnections() {
+            Connection connection;
+            while ((connection = pendingConnections.poll()) != null) {
+                try {
+                    connection.channel.configureBlocking(false);
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    WebServer.getMetrics().connectionOpened();
+                } catch (IOException e) {
+                    System.out.println("Something went wrong with the input/output");
+                    connectionLimiter.release(connection.remoteAddress);
+                    try {
+                        connection.channel.close();
+                    } catch (IOException closeFailure) {
+                        // nothing more to release
+                    }
+                }
+            }
+        }
+
+        // Closes idle keep-alive connections and clients that stall: a response the client has not
+        // taken any of for writeTimeout, or a request not complete within readTimeout of its first
+        // byte, which is answered with 408. An idle HTTP/2 connection gets a GOAWAY first.
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < IDLE_CHECK_INTERVAL) {
+                return;
+            }
+            lastIdleCheck = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                // a file reader is still working on the response, the client is not the one stalling
+                if (connection == null || !key.isValid() || connection.awaitingResponse) {
+                    continue;
+                }
+                if (connection.http2 != null) {
+                    long readStarted = connection.http2.getReadStarted();
+                    boolean busy = connection.isWriting() || connection.http2.hasOpenStreams();
+                    if (readStarted != 0 && now - readStarted > readTimeout || busy && now - connection.lastActivity > writeTimeout) {
+                        connection.close();
+                    } else if (!busy && now - connection.lastActivity > keepAliveTimeout) {
+                        connection.goAway();
+                    }
+                } else if (connection.isWriting()) {
+                    if (now - connection.lastActivity > writeTimeout) {
+                        connection.close();
+                    }
+                } else if (connection.readStarted != 0) {
+                    if (now - connection.readStarted > readTimeout) {
+                        try {
+                            connection.timeOut();
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                } else if (now - connection.lastActivity > keepAliveTimeout) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        // null on plain connections, requests and responses then go through channel directly
+        private final TlsChannel tls;
+        private final ByteChannel io;
+        private final String remoteAddress;
+        private final ArrayDeque<PendingWrite> writeQueue = new ArrayDeque<>();
+        private SelectionKey key;
+        private EventLoop eventLoop;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final HTTPRequestParser parser = new HTTPRequestParser();
+        private HTTPRequest pendingRequest;
+        private RequestBodyDecoder pendingBody;
+        private long requestStart;
+        // when the first byte of the request being read arrived, 0 while waiting between requests
+        private long readStarted;
+        private int handledRequests;
+        private boolean closeAfterWrite;
+        // pendingRequest is being answered by a file reader, the requests behind it wait their turn
+        private boolean awaitingResponse;
+        private long lastActivity = System.currentTimeMillis();
+        // set once the connection speaks HTTP/2, with the frames produced but not written yet (read mode)
+        private Http2Connection http2;
+        private ByteBuffer http2Output;
+        // false until ALPN or the first bytes tell whether the client speaks HTTP/2
+        private boolean protocolChosen = http2MaxStreams == 0;
+
+        Connection(SocketChannel channel, String remoteAddress, TlsChannel tls) {
+            this.channel = channel;
+            this.tls = tls;
+            this.io = tls != null ? tls : channel;
+            this.remoteAddress = remoteAddress;
+        }
+
+        // a response is queued, or its last encrypted bytes have not reached the socket yet
+        boolean isWriting() {
+            return !writeQueue.isEmpty() || http2Output != null && http2Output.hasRemaining() || tls != null && tls.hasPendingOutput();
+        }
+
+        void read() throws IOException {
+            while (true) {
+                int count = io.read(readBuffer);
+                if (count < 0) {
+                    close();
+                    return;
+                }
+                lastActivity = System.currentTimeMillis();
+                if (!protocolChosen) {
+                    chooseProtocol();
+                }
+                if (http2 != null) {
+                    // the connection keeps its own deadlines per stream, see closeIdleConnections
+                    readBuffer.flip();
+                    http2.receive(readBuffer);
+                    readBuffer.clear();
+                } else if (!awaitingResponse) {
+                    handleRequests();
+                }
+                // TLS records already taken off the socket are not signalled by the selector again
+                if (count == 0 || closeAfterWrite || awaitingResponse || tls == null || !tls.isReadable()) {
+                    break;
+                }
+            }
+            write();
+        }
+
+        private void handleRequests() {
+            int handled = handledRequests;
+            if (protocolChosen) {
+                processBufferedRequests();
+            }
+            // the read timeout runs from the first byte of a request, a finished request resets it
+            if (closeAfterWrite || handledRequests != handled) {
+                readStarted = 0;
+            }
+            // a TLS handshake counts as the start of the first request, so it cannot trickle in either
+            boolean started = pendingRequest != null || parser.isStarted() || readBuffer.position() > 0
+                    || tls != null && tls.isHandshaking();
+            if (!closeAfterWrite && readStarted == 0 && started) {
+                readStarted = lastActivity;
+            }
+        }
+
+        // HTTP/2 when ALPN settled on h2 or the client starts with the preface, HTTP/1.1 otherwise
+        private void chooseProtocol() {
+            if (tls != null) {
+                if (tls.isHandshakeFinished()) {
+                    protocolChosen = true;
+                    if ("h2".equals(tls.getApplicationProtocol())) {
+                        startHttp2();
+                    }
+                }
+                return;
+            }
+            int match = Http2Connection.matchPreface(readBuffer.duplicate().flip());
+            if (match != Http2Connection.PREFACE_PARTIAL) {
+                protocolChosen = true;
+                if (match == Http2Connection.PREFACE_MATCH) {
+                    startHttp2();
+                }
+            }
+        }
+
+        private void startHttp2() {
+            http2 = new Http2Connection(remoteAddress, maxBodySize, http2MaxStreams, (request, answer) -> offload(request, false, answer));
+            http2Output = ByteBuffer.allocate(Http2Connection.OUTPUT_BUFFER_SIZE).flip();
+            protocolChosen = true;
+            readStarted = 0;
+        }
+
+        // Stops taking new streams and writes the GOAWAY, the connection closes once the open streams
+        // are done. Sent when idle for keepAliveTimeout and while draining.
+        void goAway() {
+            http2.goAway();
+            try {
+                write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // the request took longer than readTimeout to arrive
+        void timeOut() throws IOException {
+            if (tls != null && !tls.isHandshakeFinished()) {
+                // there is no way to send the 408 before the handshake is done
+                close();
+                return;
+            }
+            readStarted = 0;
+            respond(pendingRequest, WebServer.errorResponse(408), pendingRequest != null ? requestStart : System.nanoTime());
+            closeAfterWrite = true;
+            write();
+        }
+
+        // answers every complete request in the buffer, so pipelined requests are handled in order
+        private void processBufferedRequests() {
+            readBuffer.flip();
+            while (!closeAfterWrite && !awaitingResponse) {
+                if (pendingRequest == null) {
+                    try {
+                        if (!parser.parse(readBuffer)) {
+                            break;
+                        }
+                    } catch (HTTPRequestParser.HeaderTooLargeException e) {
+                        respond(null, WebServer.errorResponse(431), System.nanoTime());
+                        break;
+                    } catch (IllegalArgumentException e) {
+                        if (WebServer.isDebugEnabled()) {
+                            System.out.println("printing request:\n" + e.getMessage());
+                        }
+                        respond(null, WebServer.errorResponse(400), System.nanoTime());
+                        break;
+                    }
+                    pendingRequest = parser.getRequest();
+                    requestStart = System.nanoTime();
+                }
+
+                // the header is parsed, the body is decoded as it arrives so the buffer never grows
+                if (RequestBodyDecoder.hasBody(pendingRequest)) {
+                    try {
+                        if (pendingBody == null) {
+                            pendingBody = new RequestBodyDecoder(pendingRequest, maxBodySize);
+                        }
+                        if (!pendingBody.feed(readBuffer)) {
+                            break;
+                        }
+                    } catch (RequestBodyDecoder.BodyTooLargeException e) {
+                        respond(pendingRequest, WebServer.errorResponse(413), requestStart);
+                        break;
+                    } catch (IllegalArgumentException e) {
+                        respond(pendingRequest, WebServer.errorResponse(400), requestStart);
+                        break;
+                    }
+                    pendingBody = null;
+                }
+
+                handledRequests++;
+                boolean allowKeepAlive = handledRequests < maxKeepAliveRequests;
+                if (WebServer.readsFromDisk(pendingRequest)) {
+                    awaitingResponse = true;
+                    offload(pendingRequest, allowKeepAlive, this::answered);
+                    break;
+                }
+                if (!answer(WebServer.processRequest(pendingRequest, allowKeepAlive))) {
+                    break;
+                }
+            }
+            readBuffer.compact();
+        }
+
+        // Sends the response to pendingRequest, the buffer is in read mode. Returns false when the
+        // connection switched to HTTP/2 and the rest of the buffer went to the Http2Connection.
+        private boolean answer(HTTPResponse response) {
+            byte[] settings = tls == null && http2MaxStreams > 0 && response.isKeepAlive()
+                    ? Http2Connection.upgradeSettings(pendingRequest) : null;
+            if (settings != null) {
+                // Upgrade: h2c, the response goes out as stream 1 after the 101 and the rest of the buffer is HTTP/2
+                writeQueue.add(new BufferWrite(ByteBuffer.wrap(Http2Connection.SWITCHING_PROTOCOLS)));
+                startHttp2();
+                http2.upgrade(settings, pendingRequest, response, requestStart);
+                http2.receive(readBuffer);
+                pendingRequest = null;
+                parser.reset();
+                return false;
+            }
+            respond(pendingRequest, response, requestStart);
+            pendingRequest = null;
+            parser.reset();
+            return true;
+        }
+
+        // processRequest runs on a file reader, the answer is run back on this connection's event loop
+        private void offload(HTTPRequest request, boolean allowKeepAlive, Consumer<HTTPResponse> answer) {
+            fileReaders.execute(() -> {
+                HTTPResponse response = WebServer.processRequest(request, allowKeepAlive);
+                eventLoop.execute(() -> {
+                    if (!key.isValid()) {
+                        return;
+                    }
+                    answer.accept(response);
+                    try {
+                        write();
+                    } catch (IOException e) {
+                        close();
+                    }
+                });
+            });
+        }
+
+        // the response a file reader made for pendingRequest, then the requests buffered behind it
+        private void answered(HTTPResponse response) {
+            awaitingResponse = false;
+            readStarted = 0;
+            lastActivity = System.currentTimeMillis();
+            readBuffer.flip();
+            boolean upgraded = !answer(response);
+            readBuffer.compact();
+            if (!upgraded) {
+                handleRequests();
+            }
+        }
+
+        // the access log duration ends once the response is queued, the socket may take it later
+        private void respond(HTTPRequest request, HTTPResponse response, long start) {
+            enqueue(response);
+            WebServer.logAccess(remoteAddress, request, response, start);
+        }
+
+        private void enqueue(HTTPResponse response) {
+            if (response.getFile() != null && response.isSendContent() && response.isChunked()) {
+                // framed a chunk at a time, each read by a file reader so the loop never waits on the disk
+                writeQueue.add(new BufferWrite(ByteBuffer.wrap(response.getHeader().getBytes(StandardCharsets.UTF_8))));
+                writeQueue.add(new ChunkedFileWrite(this, response.openChunkedFileBody()));
+            } else if (response.getFile() != null && response.isSendContent()) {
+                // file content goes from the page cache to the socket with transferTo
+                writeQueue.add(new BufferWrite(ByteBuffer.wrap(response.getHeader().getBytes(StandardCharsets.UTF_8))));
+                try {
+                    response.visitBody(new HTTPResponse.BodyVisitor() {
+                        @Override
+                        public void bytes(byte[] bytes, int offset, int length) {
+                            writeQueue.add(new BufferWrite(ByteBuffer.wrap(bytes, offset, length)));
+                        }
+
+                        @Override
+                        public void fileRegion(File file, long position, long length) throws IOException {
+                            FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                            writeQueue.add(new FileRegion(fileChannel, position, length));
+                        }
+                    });
+                } catch (IOException e) {
+                    // the header already promised the content, so the connection cannot be reused
+                    closeAfterWrite = true;
+                    return;
+                }
+            } else {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try {
+                    response.writeTo(bytes);
+                } catch (IOException e) {
+                    closeAfterWrite = true;
+                    return;
+                }
+                writeQueue.add(new BufferWrite(ByteBuffer.wrap(bytes.toByteArray())));
+            }
+            if (!response.isKeepAlive()) {
+                closeAfterWrite = true;
+            }
+        }
+
+        void write() throws IOException {
+            while (!writeQueue.isEmpty()) {
+                PendingWrite pending = writeQueue.peek();
+                if (!pending.writeTo(io)) {
+                    break;
+                }
+                writeQueue.poll().release();
+            }
+            if (http2 != null && writeQueue.isEmpty()) {
+                writeHttp2();
+            }
+            if (tls != null) {
+                tls.flush();
+            }
+            if (http2 != null) {
+                if (!isWriting() && http2.isClosed()) {
+                    close();
+                    return;
+                }
+                // HTTP/2 keeps reading while it writes, WINDOW_UPDATE frames let more DATA go out
+                key.interestOps(isWriting() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                return;
+            }
+            if (!isWriting()) {
+                if (closeAfterWrite) {
+                    close();
+                    return;
+                }
+                if (awaitingResponse) {
+                    // reading resumes once the response is in, the buffer is not parsed until then
+                    key.interestOps(0);
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                if (tls != null && tls.isReadable() && readBuffer.hasRemaining()) {
+                    // pipelined requests that arrived while the responses were being written, or the
+                    // rest of a handshake whose messages had to wait for the socket
+                    lastActivity = System.currentTimeMillis();
+                    read();
+                    return;
+                }
+            } else if (writeQueue.peek() != null && writeQueue.peek().isReading() && !(tls != null && tls.hasPendingOutput())) {
+                // nothing to write until the file reader hands the next chunk back
+                key.interestOps(0);
+            } else {
+                // stop reading until the client has drained the pending responses
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            lastActivity = System.currentTimeMillis();
+        }
+
+        // writes frames until the socket stops taking them or none are ready, lastActivity marks progress
+        private void writeHttp2() throws IOException {
+            while (true) {
+                if (!http2Output.hasRemaining()) {
+                    http2Output.clear();
+                    http2.produce(http2Output);
+                    http2Output.flip();
+                    if (!http2Output.hasRemaining()) {
+                        return;
+                    }
+                }
+                if (io.write(http2Output) > 0) {
+                    lastActivity = System.currentTimeMillis();
+                }
+                if (http2Output.hasRemaining()) {
+                    return;
+                }
+            }
+        }
+
+        void close() {
+            if (!key.isValid()) {
+                return;
+            }
+            if (http2 != null) {
+                http2.close();
+            }
+            WebServer.getMetrics().connectionClosed();
+            connectionLimiter.release(remoteAddress);
+            for (PendingWrite pending : writeQueue) {
+                pending.release();
+            }
+            writeQueue.clear();
+            key.cancel();
+            try {
+                io.close();
+            } catch (IOException e) {
+                System.out.println("Something went wrong with the input/output");
+            }
+        }
+    }
+
+    // a part of a response waiting for the socket to accept it
+    private interface PendingWrite {
+        // writes as much as the socket takes, returns true once everything was written
+        boolean writeTo(ByteChannel channel) throws IOException;
+
+        // waiting for its next part from a file reader, the socket is not watched meanwhile
+        default boolean isReading() {
+            return false;
+        }
+
+        void release();
+    }
+
+    private static class BufferWrite implements PendingWrite {
+        private final ByteBuffer buffer;
+
+        BufferWrite(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean writeTo(ByteChannel channel) throws IOException {
+            channel.write(buffer);
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    // A chunked file body. Each chunk is read and framed by a file reader and written by the loop,
+    // only one chunk is in memory at a time.
+    private class ChunkedFileWrite implements PendingWrite {
+        private final Connection connection;
+        private final HTTPResponse.ChunkedFileBody body;
+        // the chunk being written, null when the next one is needed
+        private ByteBuffer chunk;
+        private boolean reading;
+        private IOException failure;
+
+        ChunkedFileWrite(Connection connection, HTTPResponse.ChunkedFileBody body) {
+            this.connection = connection;
+            this.body = body;
+        }
+
+        @Override
+        public boolean writeTo(ByteChannel channel) throws IOException {
+            while (true) {
+                if (reading) {
+                    return false;
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                if (chunk == null) {
+                    readNextChunk();
+                    return false;
+                }
+                channel.write(chunk);
+                if (chunk.hasRemaining()) {
+                    return false;
+                }
+                chunk = null;
+                if (body.isDone()) {
+                    return true;
+                }
+            }
+        }
+
+        private void readNextChunk() {
+            reading = true;
+            fileReaders.execute(() -> {
+                ByteBuffer next = null;
+                IOException error = null;
+                try {
+                    next = body.next();
+                } catch (IOException e) {
+                    error = e;
+                }
+                ByteBuffer read = next;
+                IOException readFailure = error;
+                connection.eventLoop.execute(() -> {
+                    reading = false;
+                    chunk = read;
+                    failure = readFailure;
+                    if (!connection.key.isValid()) {
+                        // the connection closed during the read, release left the file to this
+                        release();
+                        return;
+                    }
+                    try {
+                        connection.write();
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                });
+            });
+        }
+
+        @Override
+        public boolean isReading() {
+            return reading;
+        }
+
+        // the file is only touched by one thread at a time, during a read it is released once the read is back
+        @Override
+        public void release() {
+            if (reading) {
+                return;
+            }
+            try {
+                body.close();
+            } catch (IOException e) {
+                System.out.println("Something went wrong with the input/output");
+            }
+        }
+    }
+
+    private static class FileRegion implements PendingWrite {
+        private final FileChannel fileChannel;
+        private final long end;
+        private long position;
+
+        FileRegion(FileChannel fileChannel, long position, long length) {
+            this.fileChannel = fileChannel;
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public boolean writeTo(ByteChannel channel) throws IOException {
+            while (position < end) {
+                long transferred = fileChannel.transferTo(position, end - position, channel);
+                if (transferred == 0) {
+                    if (position >= fileChannel.size()) {
+                        throw new IOException("File shrank while it was being sent");
+                    }
+                    return false;
+                }
+                position += transferred;
+            }
+            return true;
+        }
+
+        @Override
+        public void release() {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                System.out.println("Something went wrong with the input/output");
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Parameters submitted to the server, shown on params_info.html. The sorted map is safe to update
+// from every handler thread, the rendered page is cached with the version it was built from and
+// only rebuilt after a change, and the page is persisted by a background writer that coalesces
+// bursts of updates into a single write of the latest version.
+public class ParamStore {
+    private final ConcurrentSkipListMap<String, String> params = new ConcurrentSkipListMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile RenderedPage rendered = new RenderedPage(0, render(params).getBytes(StandardCharsets.UTF_8));
+
+    private final Path file;
+    private final ExecutorService writer;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+    private static class RenderedPage {
+        private final long version;
+        private final byte[] content;
+
+        RenderedPage(long version, byte[] content) {
+            this.version = version;
+            this.content = content;
+        }
+    }
+
+    public ParamStore(Path file) {
+        this.file = file;
+        this.writer = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("params-writer").daemon().factory());
+    }
+
+    // stores the parameters, returns true when any value changed
+    public boolean putAll(Map<String, String> updates) {
+        boolean changed = false;
+        for (Map.Entry<String, String> update : updates.entrySet()) {
+            if (!Objects.equals(params.put(update.getKey(), update.getValue()), update.getValue())) {
+                changed = true;
+            }
+        }
+        if (changed) {
+            version.incrementAndGet();
+            scheduleWrite();
+        }
+        return changed;
+    }
+
+    // the page for the current parameters, rendered at most once per version
+    public byte[] getPage() {
+        RenderedPage page = rendered;
+        long current = version.get();
+        if (page.version == current) {
+            return page.content;
+        }
+        // the version is read before the map, so a concurrent update only makes the next call render again
+        byte[] content = render(params).getBytes(StandardCharsets.UTF_8);
+        if (rendered.version < current) {
+            rendered = new RenderedPage(current, content);
+        }
+        return content;
+    }
+
+    // at most one write is queued, it picks up every change made before it starts
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            writer.execute(() -> {
+                writeScheduled.set(false);
+                writePage();
+            });
+        }
+    }
+
+    private void writePage() {
+        try {
+            // written next to the page and moved over it, so readers never see a partial file
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temporary, getPage());
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("An error occurred while writing data to params_info.html");
+        }
+    }
+
+    // waits for the pending write, if any
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // lists the parameters in the map's key order
+    static String render(SortedMap<String, String> params) {
+        StringBuilder htmlBuilder = new StringBuilder(256 + params.size() * 64);
+        htmlBuilder.append("<!DOCTYPE html>\n");
+        htmlBuilder.append("<html>\n");
+        htmlBuilder.append("<head>\n");
+        htmlBuilder.append("<title>Submitted Parameters</title>\n");
+        htmlBuilder.append("</head>\n");
+        htmlBuilder.append("<body>\n");
+        htmlBuilder.append("<h1>Submitted Parameters</h1>\n");
+        htmlBuilder.append("<ul>\n");
+        for (Map.Entry<String, String> entry : params.entrySet()) {
+            htmlBuilder.append("<li>").append(entry.getKey()).append(": ").append(entry.getValue()).append("</li>\n");
+        }
+        htmlBuilder.append("</ul>\n");
+        htmlBuilder.append("</body>\n");
+        htmlBuilder.append("</html>\n");
+        return htmlBuilder.toString();
+    }
+}
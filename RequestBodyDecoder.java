@@ -0,0 +1,177 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// Reads a request body incrementally from the connection's buffer, framed by Content-Length or by
+// chunked transfer coding, and decodes it as key=value&key=value form data straight into the
+// request's parameters. Only the pair being decoded is held in memory, and the body is refused once
+// it grows past maxBodySize.
+public class RequestBodyDecoder {
+    private static final int LENGTH = 0;
+    private static final int CHUNK_SIZE = 1;
+    private static final int CHUNK_EXTENSION = 2;
+    private static final int CHUNK_DATA = 3;
+    private static final int CHUNK_DATA_END = 4;
+    private static final int TRAILER_START = 5;
+    private static final int TRAILER = 6;
+    private static final int DONE = 7;
+
+    private final long maxBodySize;
+    private final Map<String, String> parameters;
+    private int state;
+    private long remaining;
+    private long received;
+    private int sizeDigits;
+
+    private byte[] pair = new byte[64];
+    private int pairLength;
+    private int equals = -1;
+
+    public static class BodyTooLargeException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        public BodyTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    public RequestBodyDecoder(HTTPRequest request, long maxBodySize) {
+        this.maxBodySize = maxBodySize;
+        this.parameters = request.getParameters();
+        if (request.hasChunkedBody()) {
+            state = CHUNK_SIZE;
+        } else {
+            if (request.getContentLength() > maxBodySize) {
+                throw new BodyTooLargeException("Request body exceeds " + maxBodySize + " bytes");
+            }
+            remaining = request.getContentLength();
+            state = remaining > 0 ? LENGTH : DONE;
+        }
+    }
+
+    public static boolean hasBody(HTTPRequest request) {
+        return request.hasChunkedBody() || request.getContentLength() > 0;
+    }
+
+    public boolean isComplete() {
+        return state == DONE;
+    }
+
+    // Consumes body bytes from the (heap) buffer's position, never past the end of the body, so
+    // pipelined requests behind it stay in the buffer. Returns true once the whole body was read.
+    public boolean feed(ByteBuffer buffer) throws IllegalArgumentException {
+        byte[] bytes = buffer.array();
+        int position = buffer.arrayOffset() + buffer.position();
+        int limit = buffer.arrayOffset() + buffer.limit();
+        try {
+            while (state != DONE && position < limit) {
+                if (state == LENGTH || state == CHUNK_DATA) {
+                    int count = (int) Math.min(remaining, limit - position);
+                    decodeForm(bytes, position, count);
+                    position += count;
+                    remaining -= count;
+                    if (remaining == 0) {
+                        state = state == LENGTH ? DONE : CHUNK_DATA_END;
+                    }
+                } else {
+                    parseFraming(bytes[position++]);
+                }
+            }
+        } finally {
+            buffer.position(position - buffer.arrayOffset());
+        }
+        if (state == DONE) {
+            endPair();
+        }
+        return state == DONE;
+    }
+
+    // the chunk size lines, the CRLF after each chunk and the trailer section
+    private void parseFraming(byte b) {
+        switch (state) {
+            case CHUNK_SIZE -> {
+                int digit = Character.digit(b, 16);
+                if (digit >= 0) {
+                    if (++sizeDigits > 15) {
+                        throw new BodyTooLargeException("Request body exceeds " + maxBodySize + " bytes");
+                    }
+                    remaining = remaining * 16 + digit;
+                } else if (sizeDigits == 0) {
+                    throw new IllegalArgumentException("Invalid chunk size");
+                } else if (b == ';' || b == ' ' || b == '\t' || b == '\r') {
+                    state = CHUNK_EXTENSION;
+                } else if (b == '\n') {
+                    startChunk();
+                } else {
+                    throw new IllegalArgumentException("Invalid chunk size");
+                }
+            }
+            case CHUNK_EXTENSION -> {
+                // chunk extensions are ignored
+                if (b == '\n') {
+                    startChunk();
+                }
+            }
+            case CHUNK_DATA_END -> {
+                if (b == '\n') {
+                    state = CHUNK_SIZE;
+                } else if (b != '\r') {
+                    throw new IllegalArgumentException("Missing CRLF after a chunk");
+                }
+            }
+            case TRAILER_START -> {
+                if (b == '\n') {
+                    state = DONE;
+                } else if (b != '\r') {
+                    state = TRAILER;
+                }
+            }
+            case TRAILER -> {
+                // trailer fields are skipped line by line until the empty line
+                if (b == '\n') {
+                    state = TRAILER_START;
+                }
+            }
+            default -> throw new IllegalStateException();
+        }
+    }
+
+    private void startChunk() {
+        received += remaining;
+        if (received > maxBodySize) {
+            throw new BodyTooLargeException("Request body exceeds " + maxBodySize + " bytes");
+        }
+        sizeDigits = 0;
+        state = remaining == 0 ? TRAILER_START : CHUNK_DATA;
+    }
+
+    // splits pairs on '&' and the key from the value on the first '=', empty pairs are skipped
+    private void decodeForm(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            byte b = bytes[i];
+            if (b == '&') {
+                endPair();
+                continue;
+            }
+            if (b == '=' && equals < 0) {
+                equals = pairLength;
+            }
+            if (pairLength == pair.length) {
+                byte[] larger = new byte[pair.length * 2];
+                System.arraycopy(pair, 0, larger, 0, pairLength);
+                pair = larger;
+            }
+            pair[pairLength++] = b;
+        }
+    }
+
+    private void endPair() {
+        if (pairLength > 0) {
+            String key = new String(pair, 0, equals < 0 ? pairLength : equals, StandardCharsets.UTF_8);
+            String value = equals < 0 ? "" : new String(pair, equals + 1, pairLength - equals - 1, StandardCharsets.UTF_8);
+            parameters.put(key, value);
+        }
+        pairLength = 0;
+        equals = -1;
+    }
+}
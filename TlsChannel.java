@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+// A non-blocking SocketChannel seen through an SSLEngine: read returns decrypted bytes and write
+// encrypts, so the NIO engine uses it in place of the socket channel. The handshake runs inside read
+// as the client's messages arrive. Both return 0 when the socket cannot make progress; encrypted
+// bytes the socket did not take yet stay here, and flush must be retried once the socket is writable
+// while hasPendingOutput is true. Records already read from the socket are not signalled by the
+// selector again, the caller checks isReadable. Buffers come from the TlsContext's pool and
+// go back to it whenever they are empty.
+public class TlsChannel implements ByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int RECORD_HEADER_SIZE = 5;
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final TlsContext context;
+    // all three in write mode and null while empty: records read from the socket but not decrypted,
+    // decrypted bytes the caller has not taken, and encrypted bytes waiting for the socket
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private ByteBuffer netOut;
+    private boolean handshakeFinished;
+    private boolean inboundClosed;
+
+    TlsChannel(SocketChannel channel, SSLEngine engine, TlsContext context) {
+        this.channel = channel;
+        this.engine = engine;
+        this.context = context;
+    }
+
+    // false until the first handshake is done, no application data can flow before it
+    public boolean isHandshakeFinished() {
+        return handshakeFinished;
+    }
+
+    // the protocol ALPN settled on in the handshake, "h2" for HTTP/2, empty or null when there was none
+    public String getApplicationProtocol() {
+        return engine.getApplicationProtocol();
+    }
+
+    // the client has sent part of the first handshake
+    public boolean isHandshaking() {
+        return !handshakeFinished && (netIn != null || engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        while (true) {
+            int taken = take(dst);
+            if (taken > 0 || !dst.hasRemaining()) {
+                return taken;
+            }
+            if (inboundClosed) {
+                return -1;
+            }
+            if (!runHandshake()) {
+                // handshake messages are waiting for the socket
+                return 0;
+            }
+            // a full buffer without a whole record is left to the engine to reject
+            if (hasBufferedRecord() || netIn != null && !netIn.hasRemaining()) {
+                unwrap();
+                continue;
+            }
+            if (netIn == null) {
+                netIn = context.acquire();
+            }
+            int count = channel.read(netIn);
+            if (count <= 0) {
+                releaseEmpty();
+                if (count < 0) {
+                    inboundClosed = true;
+                    return -1;
+                }
+                return 0;
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int consumed = 0;
+        while (src.hasRemaining() && flush()) {
+            if (netOut == null) {
+                netOut = context.acquire();
+            }
+            SSLEngineResult result = engine.wrap(src, netOut);
+            finished(result);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("The TLS connection is closed");
+            }
+            consumed += result.bytesConsumed();
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                // the engine waits for the peer, e.g. in the middle of a handshake
+                break;
+            }
+        }
+        flush();
+        return consumed;
+    }
+
+    // Sends the encrypted bytes waiting for the socket, true once none are left
+    public boolean flush() throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+        netOut.flip();
+        channel.write(netOut);
+        netOut.compact();
+        if (netOut.position() > 0) {
+            return false;
+        }
+        context.release(netOut);
+        netOut = null;
+        return true;
+    }
+
+    public boolean hasPendingOutput() {
+        return netOut != null;
+    }
+
+    // read can make progress without new bytes from the socket: decrypted bytes or a whole record are
+    // buffered, or handshake messages are left to send after a blocked flush
+    public boolean isReadable() {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return appIn != null || hasBufferedRecord() || status == SSLEngineResult.HandshakeStatus.NEED_WRAP
+                || status == SSLEngineResult.HandshakeStatus.NEED_TASK;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    // sends close_notify if the socket takes it right away and closes the channel
+    @Override
+    public void close() throws IOException {
+        try {
+            engine.closeOutbound();
+            if (flush()) {
+                netOut = context.acquire();
+                engine.wrap(EMPTY, netOut);
+                flush();
+            }
+        } catch (IOException e) {
+            // the peer is gone, there is nobody to notify
+        } finally {
+            for (ByteBuffer buffer : new ByteBuffer[] {netIn, appIn, netOut}) {
+                if (buffer != null) {
+                    context.release(buffer);
+                }
+            }
+            netIn = appIn = netOut = null;
+            channel.close();
+        }
+    }
+
+    // runs the handshake steps that need no input, false while their output waits for the socket
+    private boolean runHandshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK -> {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                }
+                case NEED_WRAP -> {
+                    if (!flush()) {
+                        return false;
+                    }
+                    netOut = context.acquire();
+                    SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                    finished(result);
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0) {
+                        throw new SSLException("The TLS connection is closed");
+                    }
+                }
+                default -> {
+                    return flush();
+                }
+            }
+        }
+    }
+
+    private void unwrap() throws IOException {
+        if (appIn == null) {
+            appIn = context.acquire();
+        }
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        finished(result);
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            inboundClosed = true;
+        } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && !netIn.hasRemaining()) {
+            throw new SSLException("TLS record larger than the maximum record size");
+        }
+        releaseEmpty();
+    }
+
+    private void finished(SSLEngineResult result) {
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            handshakeFinished = true;
+        }
+    }
+
+    // a whole record has arrived, so unwrap can make progress without reading from the socket
+    private boolean hasBufferedRecord() {
+        if (netIn == null || netIn.position() < RECORD_HEADER_SIZE) {
+            return false;
+        }
+        int length = (netIn.get(3) & 0xff) << 8 | netIn.get(4) & 0xff;
+        return netIn.position() >= RECORD_HEADER_SIZE + length;
+    }
+
+    // moves decrypted bytes to dst
+    private int take(ByteBuffer dst) {
+        if (appIn == null) {
+            return 0;
+        }
+        appIn.flip();
+        int count = Math.min(appIn.remaining(), dst.remaining());
+        int limit = appIn.limit();
+        appIn.limit(appIn.position() + count);
+        dst.put(appIn);
+        appIn.limit(limit);
+        appIn.compact();
+        releaseEmpty();
+        return count;
+    }
+
+    private void releaseEmpty() {
+        if (netIn != null && netIn.position() == 0) {
+            context.release(netIn);
+            netIn = null;
+        }
+        if (appIn != null && appIn.position() == 0) {
+            context.release(appIn);
+            appIn = null;
+        }
+    }
+}
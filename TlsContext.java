@@ -0,0 +1,105 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+// The HTTPS listener's TLS setup, shared by both engines: an SSLContext with the key and certificate
+// from a PKCS12 or JKS keystore and a server session cache sized for resumption, so returning clients
+// skip the full handshake. The NIO engine's TlsChannels take their network buffers from a pool of
+// direct buffers here and give them back as soon as they are empty, so idle connections hold none.
+// With HTTP/2 on, ALPN offers h2 ahead of http/1.1 and the engines ask which one was chosen.
+public class TlsContext {
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+    private static final String[] APPLICATION_PROTOCOLS = {"h2", "http/1.1"};
+    // empty buffers kept for reuse, more are left to the garbage collector
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
+    private final SSLContext sslContext;
+    private final SSLSocketFactory socketFactory;
+    private final int bufferSize;
+    private final boolean http2;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private TlsContext(SSLContext sslContext, boolean http2) {
+        this.sslContext = sslContext;
+        this.http2 = http2;
+        this.socketFactory = sslContext.getSocketFactory();
+        // large enough for a whole record, encrypted or decrypted
+        SSLEngine probe = sslContext.createSSLEngine();
+        this.bufferSize = Math.max(probe.getSession().getPacketBufferSize(), probe.getSession().getApplicationBufferSize());
+    }
+
+    // sessionTimeout is in seconds
+    public static TlsContext load(String keystore, char[] password, int sessionCacheSize, int sessionTimeout, boolean http2)
+            throws IOException, GeneralSecurityException {
+        // client initiated renegotiation costs a full handshake each time and is not needed by HTTP
+        System.setProperty("jdk.tls.rejectClientInitiatedRenegotiation", "true");
+        KeyStore keyStore = KeyStore.getInstance(new File(keystore), password);
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers.getKeyManagers(), null, null);
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeout);
+        return new TlsContext(sslContext, http2);
+    }
+
+    // the NIO engine's view of an accepted non-blocking channel
+    public TlsChannel newChannel(SocketChannel channel) {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setSSLParameters(serverParameters(engine.getSSLParameters()));
+        return new TlsChannel(channel, engine, this);
+    }
+
+    // The blocking engine layers an SSLSocket over the accepted socket instead, so socket timeouts
+    // keep working; it shares this context's session cache. Closing it closes the socket below.
+    public SSLSocket wrap(Socket socket) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) socketFactory.createSocket(socket, null, socket.getPort(), true);
+        sslSocket.setUseClientMode(false);
+        sslSocket.setSSLParameters(serverParameters(sslSocket.getSSLParameters()));
+        return sslSocket;
+    }
+
+    private SSLParameters serverParameters(SSLParameters parameters) {
+        parameters.setProtocols(PROTOCOLS);
+        // the server's preference picks the cipher suite, not the client's list order
+        parameters.setUseCipherSuitesOrder(true);
+        if (http2) {
+            parameters.setApplicationProtocols(APPLICATION_PROTOCOLS);
+        }
+        return parameters;
+    }
+
+    // an empty buffer in write mode that holds a whole TLS record
+    ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() > MAX_POOLED_BUFFERS) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.add(buffer.clear());
+    }
+}
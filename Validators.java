@@ -0,0 +1,135 @@
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// ETag and Last-Modified validators, the If-None-Match / If-Modified-Since / If-Range checks
+// and Range header parsing for static files.
+public class Validators {
+    // more ranges than this in one request are answered with the whole file
+    private static final int MAX_RANGES = 16;
+
+    private Validators() {
+    }
+
+    // strong ETag from the file size and modification time, compressed variants get their own
+    public static String etag(long length, long lastModified, String coding) {
+        String tag = Long.toHexString(length) + "-" + Long.toHexString(lastModified);
+        return coding == null ? "\"" + tag + "\"" : "\"" + tag + "-" + coding + "\"";
+    }
+
+    public static String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+    }
+
+    // true when the client's cached copy is still current, If-None-Match takes precedence over If-Modified-Since;
+    // only GET and HEAD are answered with 304
+    public static boolean notModified(HTTPRequest request, String etag, long lastModified) {
+        if (request.getIfNoneMatch() != null) {
+            return noneMatchFails(request, etag);
+        }
+        String ifModifiedSince = request.getIfModifiedSince();
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+                return lastModified / 1000 <= since;
+            } catch (DateTimeParseException e) {
+                // an unparsable date is ignored
+            }
+        }
+        return false;
+    }
+
+    // true when If-None-Match lists the current ETag or *, which is 304 for GET and HEAD and 412 for other methods
+    public static boolean noneMatchFails(HTTPRequest request, String etag) {
+        String ifNoneMatch = request.getIfNoneMatch();
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.strip();
+            // weak comparison, a W/ prefix is ignored
+            if (tag.equals("*") || (tag.startsWith("W/") ? tag.substring(2) : tag).equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // a Range with If-Range is only honoured while the file still has the given ETag or date
+    public static boolean ifRangeMatches(HTTPRequest request, String etag, String lastModifiedHeader) {
+        String ifRange = request.getIfRange();
+        if (ifRange == null) {
+            return true;
+        }
+        return ifRange.startsWith("\"") ? ifRange.equals(etag) : ifRange.equals(lastModifiedHeader);
+    }
+
+    // Parses "bytes=first-last, first-, -suffix" against the content length into sorted, merged
+    // [first, last] pairs. Returns null when the header should be ignored and the whole content sent,
+    // and an empty array when no range is satisfiable.
+    public static long[] parseRanges(String header, long length) {
+        if (header == null || !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            String range = spec.strip();
+            int dash = range.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    long suffix = Long.parseLong(range.substring(1));
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(range.substring(0, dash));
+                    if (dash == range.length() - 1) {
+                        last = length - 1;
+                    } else {
+                        long requestedLast = Long.parseLong(range.substring(dash + 1));
+                        if (requestedLast < first) {
+                            return null;
+                        }
+                        last = Math.min(requestedLast, length - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first < length && first <= last) {
+                ranges.add(new long[] {first, last});
+            }
+        }
+
+        // overlapping and adjacent ranges are sent as one part
+        ranges.sort(Comparator.comparingLong(range -> range[0]));
+        long[] merged = new long[ranges.size() * 2];
+        int count = 0;
+        for (long[] range : ranges) {
+            if (count > 0 && range[0] <= merged[count - 1] + 1) {
+                merged[count - 1] = Math.max(merged[count - 1], range[1]);
+            } else {
+                merged[count++] = range[0];
+                merged[count++] = range[1];
+            }
+        }
+        return Arrays.copyOf(merged, count);
+    }
+}
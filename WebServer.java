@@ -1,49 +1,303 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.Arrays;
 import java.util.Properties;
-import java.util.TreeMap;
+import java.util.Set;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
 
 public class WebServer {
+    private static final int READ_BUFFER_SIZE = 8192;
     private static int PORT;
-    private static String ROOT_DIRECTORY;
-    private static String DEFAULT_PAGE;
-    private static int MAX_THREADS;
-    private static HashMap<String, String> serverParams;
+    // 0 when HTTPS is off, tlsContext is then null
+    private static int TLS_PORT;
+    private static TlsContext tlsContext;
+    private static String TLS_KEYSTORE;
+    private static String TLS_KEYSTORE_PASSWORD;
+    private static int TLS_SESSION_CACHE_SIZE;
+    private static int TLS_SESSION_TIMEOUT;
+    // the streams a client may have open on one HTTP/2 connection, 0 when HTTP/2 is off
+    private static int HTTP2_MAX_STREAMS;
+    // root, defaultPage and maxThreads can change while running, see reloadConfig
+    private static volatile String ROOT_DIRECTORY;
+    private static volatile String DEFAULT_PAGE;
+    private static volatile int MAX_THREADS;
+    private static int KEEP_ALIVE_TIMEOUT;
+    private static int MAX_KEEP_ALIVE_REQUESTS;
+    private static String ENGINE;
+    private static int IO_THREADS;
+    private static String EXECUTOR;
+    private static int QUEUE_SIZE;
+    private static ConnectionLimiter connectionLimiter;
+    private static int READ_TIMEOUT;
+    private static int WRITE_TIMEOUT;
+    // the 503 the acceptor sends without involving a worker, built once from retryAfter
+    private static byte[] serviceUnavailable;
+    private static Semaphore fileReadPermits;
+    private static FileCache fileCache;
+    // null when fileIndex = off, files are then looked up on disk per request
+    private static volatile FileIndex fileIndex;
+    private static boolean FILE_INDEX;
+    private static long ZERO_COPY_THRESHOLD;
+    private static boolean COMPRESSION;
+    private static int COMPRESSION_LEVEL;
+    private static int COMPRESSION_MIN_SIZE;
+    private static long MAX_BODY_SIZE;
+    private static ParamStore serverParams;
+    private static boolean DEBUG;
+    private static AccessLog accessLog;
+    private static final Metrics metrics = new Metrics();
+    private static String METRICS_PATH;
+    private static int DRAIN_TIMEOUT;
+    private static volatile boolean shuttingDown;
+    private static int ACCEPTORS;
+    private static AcceptorGroup[] acceptorGroups;
+    private static NioEngine nioEngine;
 
 
     public static void main(String[] args) {
         readConfig();
-        ThreadPoolExecutor threadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(MAX_THREADS);
-        serverParams = new HashMap<>();
-
+        if (FILE_INDEX) {
+            try {
+                fileIndex = FileIndex.open(ROOT_DIRECTORY);
+            } catch (IOException e) {
+                System.err.println("Error with config.ini file");
+                System.exit(1);
+            }
+        }
+        if (TLS_PORT > 0) {
+            try {
+                tlsContext = TlsContext.load(TLS_KEYSTORE, TLS_KEYSTORE_PASSWORD.toCharArray(), TLS_SESSION_CACHE_SIZE, TLS_SESSION_TIMEOUT,
+                        HTTP2_MAX_STREAMS > 0);
+            } catch (IOException | GeneralSecurityException e) {
+                System.err.println("Error with the keystore " + TLS_KEYSTORE + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        serverParams = new ParamStore(Path.of(ROOT_DIRECTORY, "params_info.html"));
+        // a single hook, so the logs are only closed once the connections have drained
+        Runtime.getRuntime().addShutdownHook(new Thread(WebServer::shutdown, "shutdown"));
+        metrics.setFileCache(fileCache);
+        metrics.setAccessLog(accessLog);
         try {
-            ServerSocket serverSocket = new ServerSocket(PORT);
-            System.out.println("Server listening on port " + PORT+"\n");
+            new ConfigWatcher(Path.of("config.ini"), WebServer::reloadConfig).start();
+        } catch (IOException e) {
+            System.out.println("config.ini changes will not be picked up until a restart");
+        }
 
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                threadPool.execute(new ClientHandler(clientSocket));
+        if (ENGINE.equals("nio")) {
+            try {
+                nioEngine = new NioEngine(PORT, TLS_PORT, tlsContext, IO_THREADS, KEEP_ALIVE_TIMEOUT, MAX_KEEP_ALIVE_REQUESTS, MAX_BODY_SIZE,
+                        READ_TIMEOUT, WRITE_TIMEOUT, connectionLimiter, HTTP2_MAX_STREAMS);
+                nioEngine.run();
+            } catch (Exception e) {
+                if (shuttingDown) {
+                    return;
+                }
+                System.out.println("Unexpected error occurred, shutting down...");
+                System.exit(1);
             }
-        } catch (Exception e) {
+            return;
+        }
+
+        // Virtual threads let thousands of slow clients block cheaply, the fixed pool caps them at
+        // maxThreads with at most queueSize connections waiting for a thread. Past that the pool
+        // refuses the connection and it is answered with 503 instead of queuing without bound.
+        // Virtual threads never refuse one, queueSize does not apply to them and only the
+        // ConnectionLimiter (maxConnections, maxConnectionsPerClient) sheds load with 503.
+        // With acceptors > 1 the pool and the queue are split into that many groups, each with its
+        // own acceptor thread, so connections are not all handed off through one queue. Where the
+        // platform has SO_REUSEPORT (Linux) every group listens on its own socket and the kernel
+        // spreads new connections over them, elsewhere the groups accept from one shared channel.
+        // HTTPS connections are accepted by a second thread per group on tlsPort, the same way.
+        ExecutorService virtualThreads = EXECUTOR.equals("virtual")
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-handler-", 0).factory())
+                : null;
+        AcceptorGroup[] groups = new AcceptorGroup[ACCEPTORS];
+        boolean reusePort;
+        try {
+            reusePort = ACCEPTORS > 1 && supportsReusePort();
+            ServerSocketChannel shared = null;
+            ServerSocketChannel sharedTls = null;
+            for (int i = 0; i < ACCEPTORS; i++) {
+                ServerSocketChannel channel;
+                ServerSocketChannel tlsChannel = null;
+                if (reusePort) {
+                    channel = openServerChannel(PORT, true);
+                    if (tlsContext != null) {
+                        tlsChannel = openServerChannel(TLS_PORT, true);
+                    }
+                } else {
+                    if (shared == null) {
+                        shared = openServerChannel(PORT, false);
+                        sharedTls = tlsContext != null ? openServerChannel(TLS_PORT, false) : null;
+                    }
+                    channel = shared;
+                    tlsChannel = sharedTls;
+                }
+                int threads = Math.max(1, groupShare(MAX_THREADS, i));
+                int queueSize = groupShare(QUEUE_SIZE, i);
+                BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>();
+                ExecutorService workers = virtualThreads != null
+                        ? virtualThreads
+                        : new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue);
+                groups[i] = new AcceptorGroup(i, channel, tlsChannel, workers);
+            }
+        } catch (IOException e) {
             System.out.println("Unexpected error occurred, shutting down...");
             System.exit(1);
-        } finally {
-            threadPool.shutdown();
+            return;
+        }
+        acceptorGroups = groups;
+        metrics.setExecutors(Arrays.stream(groups).map(group -> group.workers).distinct().toList());
+        startWriteWatchdog();
+        System.out.println("Server listening on port " + PORT + (tlsContext != null ? ", HTTPS on port " + TLS_PORT : "") + " (" + EXECUTOR + " threads, " + ACCEPTORS + " acceptor group"
+                + (ACCEPTORS > 1 ? "s" + (reusePort ? " with SO_REUSEPORT" : " on a shared socket") : "") + ")\n");
+        for (AcceptorGroup group : groups) {
+            group.start();
+        }
+    }
+
+    // the part of a total that acceptor group index gets, spread as evenly as possible
+    private static int groupShare(int total, int index) {
+        return total / ACCEPTORS + (index < total % ACCEPTORS ? 1 : 0);
+    }
+
+    private static boolean supportsReusePort() throws IOException {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    // accepting through a channel gives every socket a SocketChannel for zero-copy file transfer
+    private static ServerSocketChannel openServerChannel(int port, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        if (reusePort) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.bind(new InetSocketAddress(port));
+        return channel;
+    }
+
+    // Runs on SIGTERM (and System.exit): stops accepting, lets the requests in flight finish within
+    // drainTimeout while idle keep-alive connections are closed, then flushes the logs.
+    private static void shutdown() {
+        shuttingDown = true;
+        System.out.println("Shutting down, draining connections...");
+        if (nioEngine != null) {
+            nioEngine.shutdown(DRAIN_TIMEOUT);
+        } else if (acceptorGroups != null) {
+            for (AcceptorGroup group : acceptorGroups) {
+                try {
+                    group.channel.close();
+                    if (group.tlsChannel != null) {
+                        group.tlsChannel.close();
+                    }
+                } catch (IOException e) {
+                    // not accepting either way
+                }
+                // queued connections still run, each answers at most one request with Connection: close
+                group.workers.shutdown();
+            }
+            for (ClientHandler handler : activeHandlers) {
+                if (handler.idle) {
+                    handler.abort();
+                }
+            }
+            long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+            try {
+                boolean drained = true;
+                for (AcceptorGroup group : acceptorGroups) {
+                    drained &= group.workers.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+                if (!drained) {
+                    for (ClientHandler handler : activeHandlers) {
+                        handler.abort();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (serverParams != null) {
+            serverParams.close();
+        }
+        if (accessLog != null) {
+            // entries still in the ring buffer are written out
+            accessLog.close();
+        }
+    }
+
+    // Applies the settings that can change without a restart when config.ini is saved: root,
+    // defaultPage and maxThreads. An invalid file keeps the current settings.
+    private static void reloadConfig() {
+        Properties properties = new Properties();
+        String root;
+        String defaultPage;
+        int maxThreads;
+        try (FileInputStream in = new FileInputStream("config.ini")) {
+            properties.load(in);
+            root = properties.getProperty("root");
+            if (!root.endsWith("/")) {
+                root = root + "/";
+            }
+            defaultPage = properties.getProperty("defaultPage");
+            maxThreads = Integer.parseInt(properties.getProperty("maxThreads"));
+            if (defaultPage == null || maxThreads <= 0 || !new File(root).isDirectory()) {
+                throw new Exception();
+            }
+        } catch (Exception e) {
+            System.out.println("Error with config.ini file, keeping the current settings");
+            return;
         }
+
+        if (fileIndex != null && !root.equals(ROOT_DIRECTORY)) {
+            FileIndex previous = fileIndex;
+            try {
+                fileIndex = FileIndex.open(root);
+            } catch (IOException e) {
+                System.out.println("Error with config.ini file, keeping the current settings");
+                return;
+            }
+            previous.close();
+        }
+        ROOT_DIRECTORY = root;
+        DEFAULT_PAGE = defaultPage;
+        if (acceptorGroups != null) {
+            for (int i = 0; i < acceptorGroups.length; i++) {
+                if (acceptorGroups[i].workers instanceof ThreadPoolExecutor pool) {
+                    resize(pool, Math.max(1, groupShare(maxThreads, i)));
+                }
+            }
+        }
+        MAX_THREADS = maxThreads;
+        System.out.println("Reloaded config.ini: root " + root + ", default page " + defaultPage + ", max threads " + maxThreads);
     }
     private static void readConfig() {
         Properties properties = new Properties();
@@ -51,16 +305,100 @@ public class WebServer {
         try {
             properties.load(new FileInputStream("config.ini"));
             PORT = Integer.parseInt(properties.getProperty("port"));
+            TLS_PORT = getIntProperty(properties, "tlsPort", 0);
+            TLS_KEYSTORE = properties.getProperty("keystore", "keystore.p12").strip();
+            TLS_KEYSTORE_PASSWORD = properties.getProperty("keystorePassword", "").strip();
+            TLS_SESSION_CACHE_SIZE = getIntProperty(properties, "sessionCacheSize", 20000);
+            TLS_SESSION_TIMEOUT = getIntProperty(properties, "sessionTimeout", 86400);
+            if (TLS_PORT < 0 || TLS_PORT > 0 && TLS_PORT == PORT || TLS_SESSION_CACHE_SIZE < 0 || TLS_SESSION_TIMEOUT < 0) {
+                throw new Exception();
+            }
+            String http2 = properties.getProperty("http2", "on").strip();
+            HTTP2_MAX_STREAMS = getIntProperty(properties, "maxConcurrentStreams", 100);
+            if (!http2.equals("on") && !http2.equals("off") || HTTP2_MAX_STREAMS <= 0) {
+                throw new Exception();
+            }
+            if (http2.equals("off")) {
+                HTTP2_MAX_STREAMS = 0;
+            }
             ROOT_DIRECTORY = properties.getProperty("root");
             if(!ROOT_DIRECTORY.endsWith("/"))
             {
                 ROOT_DIRECTORY = ROOT_DIRECTORY + "/";
             }
-            
+
             DEFAULT_PAGE = properties.getProperty("defaultPage");
             MAX_THREADS = Integer.parseInt(properties.getProperty("maxThreads"));
+            KEEP_ALIVE_TIMEOUT = getIntProperty(properties, "keepAliveTimeout", 5) * 1000;
+            MAX_KEEP_ALIVE_REQUESTS = getIntProperty(properties, "maxKeepAliveRequests", 100);
+            ENGINE = properties.getProperty("engine", "blocking").strip();
+            IO_THREADS = getIntProperty(properties, "ioThreads", 0);
+            if (IO_THREADS == 0) {
+                IO_THREADS = Runtime.getRuntime().availableProcessors();
+            }
+            EXECUTOR = properties.getProperty("executor", "pool").strip();
+            ACCEPTORS = getIntProperty(properties, "acceptors", 1);
+            if (ACCEPTORS == 0) {
+                ACCEPTORS = Runtime.getRuntime().availableProcessors();
+            }
+            QUEUE_SIZE = getIntProperty(properties, "queueSize", 64);
+            int maxConnections = getIntProperty(properties, "maxConnections", 10000);
+            int maxConnectionsPerClient = getIntProperty(properties, "maxConnectionsPerClient", 0);
+            int retryAfter = getIntProperty(properties, "retryAfter", 1);
+            READ_TIMEOUT = getIntProperty(properties, "readTimeout", 10) * 1000;
+            WRITE_TIMEOUT = getIntProperty(properties, "writeTimeout", 30) * 1000;
+            if (QUEUE_SIZE < 0 || maxConnections < 0 || maxConnectionsPerClient < 0 || retryAfter < 0 || READ_TIMEOUT <= 0 || WRITE_TIMEOUT <= 0) {
+                throw new Exception();
+            }
+            connectionLimiter = new ConnectionLimiter(maxConnections, maxConnectionsPerClient);
+            HTTPResponse unavailable = new HTTPResponse(503);
+            unavailable.addHeader("Retry-After", Integer.toString(retryAfter));
+            serviceUnavailable = unavailable.getHeader().getBytes(StandardCharsets.UTF_8);
+            fileReadPermits = new Semaphore(getIntProperty(properties, "maxFileReads", 64));
+            int cacheSize = getIntProperty(properties, "cacheSize", 64);
+            fileCache = cacheSize > 0 ? new FileCache(cacheSize * 1024L * 1024L) : null;
+            String index = properties.getProperty("fileIndex", "on").strip();
+            FILE_INDEX = index.equals("on");
+            if (!FILE_INDEX && !index.equals("off")) {
+                throw new Exception();
+            }
+            ZERO_COPY_THRESHOLD = getIntProperty(properties, "zeroCopyThreshold", 256) * 1024L;
+            String compression = properties.getProperty("compression", "on").strip();
+            COMPRESSION = compression.equals("on");
+            COMPRESSION_LEVEL = getIntProperty(properties, "compressionLevel", 6);
+            COMPRESSION_MIN_SIZE = getIntProperty(properties, "compressionMinSize", 256);
+            if (!COMPRESSION && !compression.equals("off") || COMPRESSION_LEVEL < 1 || COMPRESSION_LEVEL > 9 || COMPRESSION_MIN_SIZE < 0) {
+                throw new Exception();
+            }
+            MAX_BODY_SIZE = getIntProperty(properties, "maxBodySize", 1024) * 1024L;
+            int chunkSize = getIntProperty(properties, "chunkSize", HTTPResponse.DEFAULT_CHUNK_SIZE);
+            if (MAX_BODY_SIZE < 0 || chunkSize <= 0 || chunkSize > 16 * 1024 * 1024) {
+                throw new Exception();
+            }
+            HTTPResponse.setChunkSize(chunkSize);
+            DRAIN_TIMEOUT = getIntProperty(properties, "drainTimeout", 10) * 1000;
+            if (DRAIN_TIMEOUT < 0) {
+                throw new Exception();
+            }
+            // an empty metricsPath turns the endpoint off
+            METRICS_PATH = properties.getProperty("metricsPath", "/metrics").strip();
+            if (!METRICS_PATH.isEmpty() && !METRICS_PATH.startsWith("/")) {
+                throw new Exception();
+            }
+            String logLevel = properties.getProperty("logLevel", "info").strip();
+            DEBUG = logLevel.equals("debug");
+            if (!logLevel.equals("off") && !logLevel.equals("info") && !DEBUG) {
+                throw new Exception();
+            }
+            String accessLogPath = properties.getProperty("accessLog", "access.log").strip();
+            if (!logLevel.equals("off") && !accessLogPath.isEmpty()) {
+                accessLog = new AccessLog(accessLogPath, getIntProperty(properties, "accessLogBuffer", 8192),
+                        getIntProperty(properties, "accessLogMaxSize", 10) * 1024L * 1024L, getIntProperty(properties, "accessLogFiles", 5));
+            }
 
-            if (ROOT_DIRECTORY == null || DEFAULT_PAGE == null || MAX_THREADS <= 0 || PORT < 0) {
+            if (ROOT_DIRECTORY == null || DEFAULT_PAGE == null || MAX_THREADS <= 0 || PORT < 0 || KEEP_ALIVE_TIMEOUT <= 0 || MAX_KEEP_ALIVE_REQUESTS <= 0
+                    || !(ENGINE.equals("blocking") || ENGINE.equals("nio")) || IO_THREADS < 0 || ACCEPTORS < 0
+                    || !(EXECUTOR.equals("pool") || EXECUTOR.equals("virtual")) || fileReadPermits.availablePermits() <= 0) {
                 throw new Exception();
             }
         } catch (Exception e) {
@@ -69,304 +407,714 @@ public class WebServer {
         }
     }
 
-    private static class ClientHandler implements Runnable {
-        private final Socket clientSocket;
+    // optional settings fall back to a default when missing from config.ini
+    private static int getIntProperty(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.strip());
+    }
 
-        public ClientHandler(Socket clientSocket) {
-            this.clientSocket = clientSocket;
+    // the verbose request and response dumps are only printed with logLevel = debug
+    static boolean isDebugEnabled() {
+        return DEBUG;
+    }
+
+    // Answers a connection that was not admitted with 503 and closes it. This runs on the acceptor,
+    // so the channel is switched to non-blocking first: the response fits the empty socket buffer
+    // of a fresh connection, and a client that is not reading cannot stall the accept loop.
+    // An HTTPS connection is only closed, a 503 would need a handshake first.
+    static void rejectConnection(SocketChannel channel, String remoteAddress, boolean tls) {
+        long start = System.nanoTime();
+        metrics.connectionRejected();
+        try (channel) {
+            if (!tls) {
+                channel.configureBlocking(false);
+                channel.write(ByteBuffer.wrap(serviceUnavailable));
+            }
+        } catch (IOException e) {
+            // the client is gone already
         }
+        logAccess(remoteAddress, null, new HTTPResponse(503), start);
+    }
 
-        @Override
-        public void run() {
-            BufferedReader in = null;
-            OutputStream out = null;
+    static Metrics getMetrics() {
+        return metrics;
+    }
 
-            try {
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                out = clientSocket.getOutputStream();
-
-                StringBuilder requestHeaderBuilder = new StringBuilder();
-                String line;
-                int contentLength = -1; // Default value for content length
-                // Read the HTTP request
-                while ((line = in.readLine()) != null && !line.isEmpty()) {
-                    requestHeaderBuilder.append(line).append("\r\n");
-                    if (line.startsWith("Content-Length:")) {
-                        contentLength = Integer.parseInt(line.split(":")[1].strip());
-                    }
+    // counts the response in the metrics and adds a line to the access log, request is null when the
+    // request could not be parsed
+    static void logAccess(String remoteAddress, HTTPRequest request, HTTPResponse response, long startNanos) {
+        long duration = System.nanoTime() - startNanos;
+        long bytes = response.isSendContent() ? Math.max(0, response.getContentLength()) : 0;
+        metrics.recordResponse(response.getStatusCode(), bytes, duration);
+        if (accessLog == null) {
+            return;
+        }
+        accessLog.log(remoteAddress, request != null ? request.getType() : "-", request != null ? request.getRequestedPage() : "-",
+                response.getStatusCode(), bytes, duration);
+    }
+
+    // the metrics in the Prometheus text format, or as JSON for ?format=json
+    private static HTTPResponse metricsResponse(HTTPRequest httpRequest) {
+        HTTPResponse response = "json".equals(httpRequest.getParameters().get("format"))
+                ? new HTTPResponse(200, "application/json", metrics::writeJson)
+                : new HTTPResponse(200, "text/plain; version=0.0.4; charset=utf-8", metrics::writePrometheus);
+        response.addHeader("Cache-Control", "no-store");
+        return response;
+    }
+
+    // Builds the response for one request, shared by the blocking and the NIO engine. The engines
+    // have already decoded the body's form parameters into the request with RequestBodyDecoder.
+    static HTTPResponse processRequest(HTTPRequest httpRequest, boolean allowKeepAlive) {
+        HTTPResponse response;
+        // while draining every response closes its connection
+        boolean keepAlive = allowKeepAlive && httpRequest.isKeepAlive() && !shuttingDown;
+        try {
+            if (DEBUG) {
+                System.out.println("printing http request object:\n" + httpRequest.toString()+"\n");
+            }
+            String requestedPage = requestedPage(httpRequest);
+            String method = httpRequest.getType();
+            if (!METRICS_PATH.isEmpty() && METRICS_PATH.equals(httpRequest.getRequestedPage())
+                    && (method.equals("GET") || method.equals("HEAD"))) {
+                response = metricsResponse(httpRequest);
+                response.setSendContent(!method.equals("HEAD"));
+            }
+            else if (method.equals("POST") || method.equals("GET") || method.equals("HEAD"))  {
+                if (httpRequest.getParameters() != null && !httpRequest.getParameters().isEmpty() && !method.equals("HEAD")) {
+                    // params_info.html is rewritten in the background, once per burst of changes
+                    serverParams.putAll(httpRequest.getParameters());
                 }
-                // Read the HTTP request body
-                StringBuilder requestBodyBuilder = new StringBuilder();
-                
-                if (contentLength >= 0) {
-                    char[] buffer = new char[contentLength];
-                    in.read(buffer, 0, contentLength);
-                    requestBodyBuilder.append(buffer);
+                if (requestedPage.equals("params_info.html")) {
+                    // served from the store, the file on disk only persists the page and may lag behind it
+                    response = new HTTPResponse(200, "text/html", serverParams.getPage(), httpRequest.isChunked());
+                    response.setSendContent(!method.equals("HEAD"));
                 }
-                
-                // Create an instance of HTTPRequest using the parsed header and body
-                HTTPRequest httpRequest = new HTTPRequest(requestHeaderBuilder.toString(), requestBodyBuilder.toString());
-                // Parse the HTTP request header using HTTPRequest class
-                System.out.println("printing the request:\n" + requestHeaderBuilder.toString()+"\n");
-                System.out.println("printing http request object:\n" + httpRequest.toString()+"\n");
-                // Get the requested page
-                String requestedPage = httpRequest.getRequestedPage();
-
-                // If the requested page is empty or null, serve the default page]
-                if (requestedPage == null || requestedPage.isEmpty() || requestedPage.equals("/")) {
-                    requestedPage = DEFAULT_PAGE;
+                else {
+                    // Read the requested file (if it exists) and generate the proper response
+                    FileIndex.Metadata metadata = lookup(requestedPage);
+                    if (metadata == null) {
+                        response = new HTTPResponse(404);
+                    } else if (metadata.getLength() > ZERO_COPY_THRESHOLD) {
+                        response = largeFileResponse(httpRequest, requestedPage, metadata);
+                        response.setSendContent(!method.equals("HEAD"));
+                    } else {
+                        response = cachedFileResponse(httpRequest, requestedPage, metadata);
+                        response.setSendContent(!method.equals("HEAD"));
+                    }
                 }
-                
-                if(requestedPage.startsWith("/"))
-                {
-                    requestedPage = requestedPage.substring(1);
+            }
+            else if(method.equals("TRACE")) {
+                response = new HTTPResponse(200, "application/octet-stream", httpRequest.getRawHeader().getBytes(StandardCharsets.UTF_8), false);
+            }
+            else {
+                response = new HTTPResponse(501);
+            }
+        }
+        catch (FileNotFoundException e) {
+            response = new HTTPResponse(404);
+        }
+        catch (IllegalArgumentException e) {
+            // a malformed request leaves the stream in an unknown state, so the connection is closed
+            if (DEBUG) {
+                System.out.println("printing request:\n" + e.getMessage());
+            }
+            return errorResponse(400);
+        }
+        catch (Exception e) {
+            return errorResponse(500);
+        }
+
+        response.setKeepAlive(keepAlive);
+        if (keepAlive) {
+            response.addHeader("Keep-Alive", "timeout=" + KEEP_ALIVE_TIMEOUT / 1000 + ", max=" + MAX_KEEP_ALIVE_REQUESTS);
+        }
+        if (DEBUG) {
+            System.out.println("printing response header:\n" + response.getHeader());
+        }
+        return response;
+    }
+
+    // the page a request names relative to the root, the default page for an empty path
+    private static String requestedPage(HTTPRequest httpRequest) {
+        String requestedPage = httpRequest.getRequestedPage();
+        if (requestedPage == null || requestedPage.isEmpty() || requestedPage.equals("/")) {
+            requestedPage = DEFAULT_PAGE;
+        }
+        if (requestedPage.startsWith("/")) {
+            requestedPage = requestedPage.substring(1);
+        }
+        return requestedPage;
+    }
+
+    // Whether processRequest may block on the disk for the request: a file under the zero-copy
+    // threshold whose content, or .gz sibling, is not in the cache, or any file while the index is
+    // off and finding it takes a stat. The NIO engine answers these off its event loops.
+    static boolean readsFromDisk(HTTPRequest httpRequest) {
+        String method = httpRequest.getType();
+        if (!(method.equals("GET") || method.equals("POST") || method.equals("HEAD"))
+                || !METRICS_PATH.isEmpty() && METRICS_PATH.equals(httpRequest.getRequestedPage())) {
+            return false;
+        }
+        String requestedPage = requestedPage(httpRequest);
+        if (requestedPage.equals("params_info.html")) {
+            return false;
+        }
+        FileIndex index = fileIndex;
+        if (index == null) {
+            return true;
+        }
+        FileIndex.Metadata metadata = index.get(requestedPage);
+        if (metadata == null || metadata.getLength() > ZERO_COPY_THRESHOLD) {
+            return false;
+        }
+        if (fileCache == null || !fileCache.contains(metadata.getPath(), metadata.getLastModified(), metadata.getLength())) {
+            return true;
+        }
+        FileIndex.Metadata precompressed = COMPRESSION ? precompressedFile(requestedPage, metadata) : null;
+        return precompressed != null && !fileCache.contains(precompressed.getPath(), precompressed.getLastModified(), precompressed.getLength());
+    }
+
+    // responses that end the connection, e.g. after a malformed request
+    static HTTPResponse errorResponse(int statusCode) {
+        HTTPResponse response = new HTTPResponse(statusCode);
+        if (DEBUG) {
+            System.out.println("printing response header:\n" + response.getHeader());
+        }
+        return response;
+    }
+
+    // Sends the gzip or deflate variant when the client accepts one: a fresh precompressed .gz
+    // sibling if there is one, otherwise compressible content is compressed once and the result is
+    // cached with the entry.
+    private static HTTPResponse cachedFileResponse(HTTPRequest httpRequest, String page, FileIndex.Metadata metadata)
+            throws IOException, InterruptedException {
+        FileCache.Entry entry = readCachedFile(metadata);
+        String contentType = entry.getContentType();
+        FileIndex.Metadata precompressed = COMPRESSION ? precompressedFile(page, metadata) : null;
+        boolean compressible = ContentEncoding.isCompressible(contentType) && entry.getContent().length >= COMPRESSION_MIN_SIZE;
+        String coding = COMPRESSION && (compressible || precompressed != null) ? ContentEncoding.negotiate(httpRequest.getAcceptEncoding()) : null;
+
+        byte[] encoded = null;
+        if (coding != null && coding.equals(ContentEncoding.GZIP) && precompressed != null) {
+            encoded = readCachedFile(precompressed).getContent();
+        } else if (coding != null && compressible) {
+            encoded = entry.getEncoded(coding);
+            if (encoded == null) {
+                encoded = ContentEncoding.encode(entry.getContent(), coding, COMPRESSION_LEVEL);
+                if (fileCache != null) {
+                    encoded = fileCache.putEncoded(entry, coding, encoded);
                 }
-                
-                String path = normalizePath(ROOT_DIRECTORY + requestedPage);
-                // Read the requested file (if it exists) and generate the proper response
-                File file = new File(path);
-                String method = httpRequest.getType();
-                if (method.equals("POST") || method.equals("GET") || method.equals("TRACE") || method.equals("HEAD"))
-                {
-                    if (method.equals("POST") || method.equals("GET") || method.equals("HEAD"))  {
-                        if (httpRequest.getParameters() != null && !method.equals("HEAD")) {
-                            handleParamsInfo(httpRequest);
-                        }
-                        if (file.exists()) {
-                            byte[] fileContent = readFile(file);
-                            String contentType = retrieveContentType(file);
-
-                            if (method.equals("POST") && requestedPage.equals("params_info.html")) {
-                                String page = generateParamsInfoPage(serverParams);
-                                String responseHeader = generateResponseHeader(200, null, page.getBytes(StandardCharsets.UTF_8), "text/html", httpRequest.isChunked());
-                                out.write(responseHeader.getBytes());
-                                out.flush();
-                                System.out.println("printing response header:\n" + responseHeader);               
-                                sendContent(page.getBytes(StandardCharsets.UTF_8), httpRequest.isChunked());
-                                
-                            }
-                            else {
-                                String responseHeader = generateResponseHeader(200, requestedPage, fileContent, contentType, httpRequest.isChunked());
-                                System.out.println("printing response header:\n" + responseHeader);
-                                out.write(responseHeader.getBytes());
-                                out.flush();
-
-                                if(fileContent != null && (method.equals("GET")  || method.equals("POST")) ) {
-                                    sendContent(fileContent, httpRequest.isChunked());
-                                }
-                            }
-                        }
-                        else {
-                            if (requestedPage.equals("params_info.html") && method.equals("POST")) {
-                                String page = generateParamsInfoPage(serverParams);
-                                String responseHeader = generateResponseHeader(200, null, page.getBytes(StandardCharsets.UTF_8), "text/html", httpRequest.isChunked());
-                                out.write(responseHeader.getBytes());
-                                out.flush();
-                                System.out.println("printing response header:\n" + responseHeader);               
-                                sendContent(page.getBytes(StandardCharsets.UTF_8), httpRequest.isChunked());
-                            }
-                            else {
-                                String responseHeader = generateResponseHeader(404, requestedPage, null, null, false);
-                                System.out.println("printing response header:\n" + responseHeader);
-                                out.write(responseHeader.getBytes());
-                                out.flush();
-                            }   
-                        }
+            }
+        }
+
+        HTTPResponse response;
+        String etag;
+        if (encoded != null && encoded.length < entry.getContent().length) {
+            response = new HTTPResponse(200, contentType, encoded, httpRequest.isChunked());
+            response.addHeader("Content-Encoding", coding);
+            etag = precompressed != null && coding.equals(ContentEncoding.GZIP)
+                    ? Validators.etag(precompressed.getLength(), precompressed.getLastModified(), coding) : entry.getETag(coding);
+        } else {
+            response = new HTTPResponse(200, contentType, entry.getContent(), httpRequest.isChunked());
+            etag = entry.getETag(null);
+        }
+        if (COMPRESSION && (compressible || precompressed != null)) {
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+        return conditionalResponse(httpRequest, response, etag, entry.getLastModified(), entry.getLastModifiedHeader());
+    }
+
+    // files above the zero-copy threshold are never compressed on the fly, only a .gz sibling is used
+    private static HTTPResponse largeFileResponse(HTTPRequest httpRequest, String page, FileIndex.Metadata metadata) {
+        String contentType = metadata.getContentType();
+        FileIndex.Metadata precompressed = COMPRESSION ? precompressedFile(page, metadata) : null;
+        HTTPResponse response;
+        String etag;
+        if (precompressed != null && ContentEncoding.GZIP.equals(ContentEncoding.negotiate(httpRequest.getAcceptEncoding()))) {
+            response = new HTTPResponse(200, contentType, precompressed.getFile(), precompressed.getLength(), httpRequest.isChunked());
+            response.addHeader("Content-Encoding", ContentEncoding.GZIP);
+            etag = Validators.etag(precompressed.getLength(), precompressed.getLastModified(), ContentEncoding.GZIP);
+        } else {
+            response = new HTTPResponse(200, contentType, metadata.getFile(), metadata.getLength(), httpRequest.isChunked());
+            etag = metadata.getETag();
+        }
+        if (precompressed != null) {
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+        return conditionalResponse(httpRequest, response, etag, metadata.getLastModified(), metadata.getLastModifiedHeader());
+    }
+
+    // Adds the validators to a 200 response for a file and answers conditional and range requests:
+    // 304 when the client's copy is current, 412 when If-None-Match matches on other methods than GET
+    // and HEAD, 206 for satisfiable ranges of a GET, 416 otherwise.
+    private static HTTPResponse conditionalResponse(HTTPRequest httpRequest, HTTPResponse response, String etag, long lastModified,
+                                                    String lastModifiedHeader) {
+        response.addHeader("ETag", etag);
+        response.addHeader("Last-Modified", lastModifiedHeader);
+        response.addHeader("Accept-Ranges", "bytes");
+        String method = httpRequest.getType();
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            // If-Modified-Since is ignored outside GET and HEAD
+            return Validators.noneMatchFails(httpRequest, etag) ? new HTTPResponse(412) : response;
+        }
+        if (Validators.notModified(httpRequest, etag, lastModified)) {
+            HTTPResponse notModified = new HTTPResponse(304);
+            notModified.addHeader("ETag", etag);
+            notModified.addHeader("Last-Modified", lastModifiedHeader);
+            if (response.getHeaderValue("Vary") != null) {
+                notModified.addHeader("Vary", response.getHeaderValue("Vary"));
+            }
+            return notModified;
+        }
+        if (!method.equals("GET") || httpRequest.getRange() == null
+                || !Validators.ifRangeMatches(httpRequest, etag, lastModifiedHeader)) {
+            return response;
+        }
+        long[] ranges = Validators.parseRanges(httpRequest.getRange(), response.getContentLength());
+        if (ranges == null) {
+            return response;
+        }
+        if (ranges.length == 0) {
+            HTTPResponse notSatisfiable = new HTTPResponse(416);
+            notSatisfiable.addHeader("Content-Range", "bytes */" + response.getContentLength());
+            return notSatisfiable;
+        }
+        return response.withRanges(ranges);
+    }
+
+    // The file a request path names: one lookup in the index, or a stat of the normalized path under
+    // the root when the index is off. Null when there is no such regular file.
+    private static FileIndex.Metadata lookup(String page) {
+        FileIndex index = fileIndex;
+        if (index != null) {
+            return index.get(page);
+        }
+        return FileIndex.stat(new File(normalizePath(ROOT_DIRECTORY + page)), ROOT_DIRECTORY);
+    }
+
+    // a .gz sibling counts only while it is at least as new as the file it was made from
+    private static FileIndex.Metadata precompressedFile(String page, FileIndex.Metadata metadata) {
+        FileIndex.Metadata precompressed = lookup(page + ".gz");
+        return precompressed != null && precompressed.getLastModified() >= metadata.getLastModified() ? precompressed : null;
+    }
+
+    // serves file content from the shared cache, reading it from disk on a miss or after it changed
+    private static FileCache.Entry readCachedFile(FileIndex.Metadata metadata) throws IOException, InterruptedException {
+        if (fileCache == null) {
+            return new FileCache.Entry(readFile(metadata.getFile()), metadata.getContentType(), metadata.getLastModified(), metadata.getLength());
+        }
+        FileCache.Entry entry = fileCache.get(metadata.getPath(), metadata.getLastModified(), metadata.getLength());
+        if (entry == null) {
+            entry = fileCache.put(metadata.getPath(), metadata.getLastModified(), readFile(metadata.getFile()), metadata.getContentType());
+        }
+        if (DEBUG) {
+            System.out.println("printing cache stats:\n" + fileCache + "\n");
+        }
+        return entry;
+    }
+
+    private static byte[] readFile(File file) throws IOException, InterruptedException {
+        // bounds concurrent disk reads, which matters once every client runs on its own virtual thread
+        fileReadPermits.acquire();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] bFile = new byte[(int)file.length()];
+            // read until the end of the stream.
+            int read = fis.readNBytes(bFile, 0, bFile.length);
+            return read == bFile.length ? bFile : Arrays.copyOf(bFile, read);
+        } finally {
+            fileReadPermits.release();
+        }
+    }
+
+    private static String normalizePath(String path) {
+        String normalizedPath = path;
+        if(path.contains("../")) {
+            normalizedPath = normalizedPath.replaceAll("\\.\\./", "");
+        }
+        return normalizedPath;
+    }
+
+    // the core size may never exceed the maximum, so the order depends on the direction;
+    // surplus threads finish their connection before they exit
+    private static void resize(ThreadPoolExecutor pool, int threads) {
+        if (threads > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(threads);
+            pool.setCorePoolSize(threads);
+        } else if (threads < pool.getMaximumPoolSize()) {
+            pool.setCorePoolSize(threads);
+            pool.setMaximumPoolSize(threads);
+        }
+    }
+
+    // An acceptor thread, another one for HTTPS when it is on, and the workers they hand their
+    // connections to, see main
+    private static class AcceptorGroup {
+        private final ServerSocketChannel channel;
+        private final ServerSocketChannel tlsChannel;
+        private final ExecutorService workers;
+        private final Thread thread;
+        private final Thread tlsThread;
+
+        AcceptorGroup(int index, ServerSocketChannel channel, ServerSocketChannel tlsChannel, ExecutorService workers) {
+            this.channel = channel;
+            this.tlsChannel = tlsChannel;
+            this.workers = workers;
+            this.thread = new Thread(() -> accept(channel, false), "acceptor-" + index);
+            this.tlsThread = tlsChannel != null ? new Thread(() -> accept(tlsChannel, true), "tls-acceptor-" + index) : null;
+        }
+
+        void start() {
+            thread.start();
+            if (tlsThread != null) {
+                tlsThread.start();
+            }
+        }
+
+        private void accept(ServerSocketChannel server, boolean tls) {
+            try {
+                while (true) {
+                    SocketChannel client = server.accept();
+                    String remoteAddress = ((InetSocketAddress) client.getRemoteAddress()).getAddress().getHostAddress();
+                    if (!connectionLimiter.tryAcquire(remoteAddress)) {
+                        rejectConnection(client, remoteAddress, tls);
+                        continue;
                     }
-                    else if(method.equals("TRACE")) {
-                        String responseHeader = generateResponseHeader(200, null, null, "application/octet-stream", false);
-                        System.out.println("printing response header:\n" + responseHeader);
-                        out.write(responseHeader.getBytes());
-                        out.write(requestHeaderBuilder.toString().getBytes());
-                        out.flush();
+                    try {
+                        workers.execute(new ClientHandler(client.socket(), remoteAddress, tls));
+                    } catch (RejectedExecutionException e) {
+                        metrics.taskRejected();
+                        connectionLimiter.release(remoteAddress);
+                        rejectConnection(client, remoteAddress, tls);
                     }
                 }
-                else {
-                    String responseHeader = generateResponseHeader(501, requestedPage, null, null, false);
-                    System.out.println("printing response header:\n" + responseHeader);
-                    out.write(responseHeader.getBytes());
-                    out.flush();
+            } catch (Exception e) {
+                if (shuttingDown) {
+                    // the shutdown hook closed the server channel and drains the workers
+                    return;
                 }
-            } 
-            catch (FileNotFoundException e) {
-                String responseHeader = generateResponseHeader(404, null, null, null, false);
-                System.out.println("printing response header:\n" + responseHeader);
-                try {   
-                    out.write(responseHeader.getBytes());
-                    out.flush();
+                System.out.println("Unexpected error occurred, shutting down...");
+                System.exit(1);
+            }
+        }
+    }
+
+    // handlers with an open connection, checked by the write watchdog and the shutdown hook
+    private static final Set<ClientHandler> activeHandlers = ConcurrentHashMap.newKeySet();
+
+    // Blocking socket writes cannot time out, so a daemon thread closes the socket of any handler
+    // whose write has made no progress for writeTimeout, which fails the write and frees the thread.
+    private static void startWriteWatchdog() {
+        Thread watchdog = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(Math.min(WRITE_TIMEOUT, 1000));
+                } catch (InterruptedException e) {
+                    return;
                 }
-                catch (IOException e1) {
-                    System.out.println("Something went wrong with the input/output");
+                long now = System.currentTimeMillis();
+                for (ClientHandler handler : activeHandlers) {
+                    long progress = handler.writeProgress;
+                    if (progress != 0 && now - progress > WRITE_TIMEOUT) {
+                        handler.abort();
+                    }
                 }
             }
-            catch (IOException e) {
-                System.out.println("Something went wrong with the input/output");
-            } catch (IllegalArgumentException e) {
-                try {
-                    if (out != null) {
-                        System.out.println("printing request:\n" + e.getMessage());
-                        String responseHeader = generateResponseHeader(400, null, null, null, false);
-                        System.out.println("printing response header:\n" + responseHeader);
-                        out.write(responseHeader.getBytes());
+        }, "write-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    private static class ClientHandler implements Runnable {
+        // the accepted socket, and the socket requests are read from: the same one, or an SSLSocket layered over it
+        private final Socket clientSocket;
+        private Socket socket;
+        private final boolean tls;
+        private final String remoteAddress;
+        // the request being answered and when its header was complete, for the access log
+        private HTTPRequest request;
+        private long requestStart;
+        // when the first byte of the request being read arrived, 0 while waiting between requests
+        private long readStarted;
+        // when the response being written last got bytes through to the socket, 0 when not writing
+        private volatile long writeProgress;
+        // waiting for the next request on a keep-alive connection, with nothing in flight
+        private volatile boolean idle;
+
+        public ClientHandler(Socket clientSocket, String remoteAddress, boolean tls) {
+            this.clientSocket = clientSocket;
+            this.socket = clientSocket;
+            this.tls = tls;
+            this.remoteAddress = remoteAddress;
+        }
+
+        private void abort() {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                // closing is all that is left to do
+            }
+        }
+
+        @Override
+        public void run() {
+            metrics.connectionOpened();
+            activeHandlers.add(this);
+            try {
+                if (tls) {
+                    // the handshake runs on this thread, bounded like a request by readTimeout
+                    SSLSocket sslSocket = tlsContext.wrap(clientSocket);
+                    socket = sslSocket;
+                    clientSocket.setSoTimeout(READ_TIMEOUT);
+                    // handshake messages and records are separate small writes, Nagle would hold them back
+                    clientSocket.setTcpNoDelay(true);
+                    sslSocket.startHandshake();
+                }
+                InputStream in = socket.getInputStream();
+                // every write or flush that gets through to the socket counts as progress for the watchdog
+                OutputStream out = new BufferedOutputStream(new FilterOutputStream(socket.getOutputStream()) {
+                    @Override
+                    public void write(byte[] bytes, int offset, int length) throws IOException {
+                        out.write(bytes, offset, length);
+                        writeProgress = System.currentTimeMillis();
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
                         out.flush();
+                        writeProgress = System.currentTimeMillis();
                     }
-                } catch (IOException ex) {
-                    System.out.println("Something went wrong with the input/output");
+                });
+                // holds bytes read from the socket but not parsed yet, kept in read mode between requests
+                ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE).flip();
+                if (startsHttp2(in, buffer)) {
+                    serveHttp2(new Http2Connection(remoteAddress, MAX_BODY_SIZE, HTTP2_MAX_STREAMS), in, out, buffer);
+                    return;
                 }
-            }
-            catch (Exception e) {
-                String responseHeader = generateResponseHeader(500, null, null, null, false);
-                System.out.println("printing response header:\n" + responseHeader);
-                try {
-                    out.write(responseHeader.getBytes());
-                    out.flush();
+                HTTPRequestParser parser = new HTTPRequestParser();
+
+                int handledRequests = 0;
+                boolean persistent = true;
+                while (persistent) {
+                    handledRequests++;
+                    HTTPResponse response = handleRequest(in, buffer, parser, handledRequests < MAX_KEEP_ALIVE_REQUESTS);
+                    if (response == null) {
+                        break;
+                    }
+                    byte[] settings = !tls && HTTP2_MAX_STREAMS > 0 && request != null && response.isKeepAlive()
+                            ? Http2Connection.upgradeSettings(request) : null;
+                    if (settings != null) {
+                        // Upgrade: h2c, the response to this request is the first on the HTTP/2 connection
+                        out.write(Http2Connection.SWITCHING_PROTOCOLS);
+                        Http2Connection http2 = new Http2Connection(remoteAddress, MAX_BODY_SIZE, HTTP2_MAX_STREAMS);
+                        http2.upgrade(settings, request, response, requestStart);
+                        serveHttp2(http2, in, out, buffer);
+                        break;
+                    }
+                    writeProgress = System.currentTimeMillis();
+                    try {
+                        // with TLS file content must go through the encrypting stream, not the socket's channel
+                        response.writeTo(out, tls ? null : clientSocket.getChannel());
+                        logAccess(remoteAddress, request, response, requestStart);
+                        persistent = response.isKeepAlive();
+                        // pipelined requests already waiting in the buffer are answered before flushing
+                        if (!persistent || (!buffer.hasRemaining() && in.available() == 0)) {
+                            out.flush();
+                        }
+                    } finally {
+                        writeProgress = 0;
+                    }
                 }
-                catch(IOException e1) {
+            }
+            catch (SocketTimeoutException e) {
+                // idle keep-alive connection or a stalled handshake, nothing to answer
+            }
+            catch (SSLException e) {
+                // a failed handshake, e.g. a client that does not trust the certificate, or a broken record
+            }
+            catch (IOException e) {
+                // sockets closed by the shutdown hook are expected to fail
+                if (!shuttingDown) {
                     System.out.println("Something went wrong with the input/output");
                 }
             }
             finally{
+                activeHandlers.remove(this);
+                metrics.connectionClosed();
+                connectionLimiter.release(remoteAddress);
                 try {
-                    if (clientSocket != null) {
-                        clientSocket.close();
-                    } 
+                    socket.close();
                 } catch (IOException e) {
                     System.out.println("Something went wrong with the input/output");
                 }
             }
-    }
+        }
 
-        private byte[] readFile(File file) throws IOException {
-            //given code in lab file
-            FileInputStream fis = new FileInputStream(file); 
-            byte[] bFile = new byte[(int)file.length()];
-            // read until the end of the stream. 
-            while(fis.available() != 0) {
-                fis.read(bFile, 0, bFile.length); 
+        // HTTP/2 was agreed on with ALPN, or the client starts with the preface without asking (prior knowledge)
+        private boolean startsHttp2(InputStream in, ByteBuffer buffer) throws IOException {
+            if (HTTP2_MAX_STREAMS == 0) {
+                return false;
+            }
+            if (tls) {
+                return "h2".equals(((SSLSocket) socket).getApplicationProtocol());
+            }
+            int match;
+            while ((match = Http2Connection.matchPreface(buffer)) == Http2Connection.PREFACE_PARTIAL) {
+                if (!fill(in, buffer)) {
+                    return false;
+                }
             }
-            return bFile;
+            return match == Http2Connection.PREFACE_MATCH;
         }
 
-        // chunked version
-        private void sendContent(byte[] content, boolean isChunked) {
+        // Serves the rest of the connection as HTTP/2. Each stream is answered on this thread as soon
+        // as its last frame is read, and the frames ready to go are written before reading more, so
+        // the responses to a page's requests are interleaved on the way out.
+        private void serveHttp2(Http2Connection http2, InputStream in, OutputStream out, ByteBuffer buffer) throws IOException {
+            ByteBuffer frames = ByteBuffer.allocate(Http2Connection.OUTPUT_BUFFER_SIZE);
             try {
-                    OutputStream os = clientSocket.getOutputStream();
-
-                    if(isChunked) {
-                        int offset = 0;
-                        while (offset < content.length) {
-                            int chunkSize = Math.min(1000, content.length - offset);
-
-                            os.write(String.valueOf(chunkSize).getBytes(StandardCharsets.UTF_8));
-                            os.write("\r\n".getBytes(StandardCharsets.UTF_8));
-                            os.write(content, offset, chunkSize);
-                            os.write("\r\n".getBytes(StandardCharsets.UTF_8));
-                            offset += chunkSize;
+                while (true) {
+                    http2.receive(buffer);
+                    if (shuttingDown) {
+                        http2.goAway();
+                    }
+                    writeFrames(http2, out, frames);
+                    if (http2.isClosed()) {
+                        return;
+                    }
+                    // a stream still arriving bounds the wait by readTimeout, an idle connection by keepAliveTimeout
+                    long started = http2.getReadStarted();
+                    readStarted = started != 0 ? started : http2.hasOpenStreams() ? System.currentTimeMillis() : 0;
+                    boolean more;
+                    try {
+                        more = fill(in, buffer);
+                    } catch (SocketTimeoutException e) {
+                        // idle or stalled, the GOAWAY tells the client which streams were answered
+                        http2.goAway();
+                        writeFrames(http2, out, frames);
+                        return;
+                    }
+                    if (!more) {
+                        // the client closed the connection, or it was idle while shutting down
+                        if (shuttingDown) {
+                            http2.goAway();
+                            writeFrames(http2, out, frames);
                         }
-
-                        os.write("0\r\n\r\n".getBytes(StandardCharsets.UTF_8)); // Last chunk
-                    } else {
-                        os.write(content);
+                        return;
                     }
-                    os.flush();
-            }
-            catch(IOException e) {
-                e.printStackTrace();
+                }
+            } finally {
+                http2.close();
             }
         }
 
-        private void handleParamsInfo(HTTPRequest httpRequest) {
-            // Specify the path of the file you want to check
-            String filePath = ROOT_DIRECTORY + "params_info.html";
-            try
-            {
-                File file = new File(filePath);
-                file.createNewFile();
-                serverParams.putAll(httpRequest.getParameters());
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
-                    writer.write(generateParamsInfoPage(serverParams));
-                } catch (IOException e) {
-                    System.out.println("An error occurred while writing data to params_info.html");
+        // writes every frame the connection has ready, as far as the flow control windows allow
+        private void writeFrames(Http2Connection http2, OutputStream out, ByteBuffer frames) throws IOException {
+            writeProgress = System.currentTimeMillis();
+            try {
+                while (true) {
+                    frames.clear();
+                    http2.produce(frames);
+                    if (frames.position() == 0) {
+                        break;
+                    }
+                    out.write(frames.array(), 0, frames.position());
                 }
-            }
-            catch (IOException e) {
-                System.out.println("An error occurred while creating params_info.html");
+                out.flush();
+            } finally {
+                writeProgress = 0;
             }
         }
 
-        private String normalizePath(String path) {
-            String normalizedPath = path;
-            if(path.contains("../")) {
-                normalizedPath = normalizedPath.replaceAll("\\.\\./", "");
+        // reads a single request from the connection, returns null once the client has closed it
+        private HTTPResponse handleRequest(InputStream in, ByteBuffer buffer, HTTPRequestParser parser, boolean allowKeepAlive) throws IOException {
+            parser.reset();
+            request = null;
+            readStarted = buffer.hasRemaining() ? System.currentTimeMillis() : 0;
+            try {
+                while (!parser.parse(buffer)) {
+                    if (!fill(in, buffer)) {
+                        return null;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                return readTimedOut();
+            } catch (HTTPRequestParser.HeaderTooLargeException e) {
+                requestStart = System.nanoTime();
+                return errorResponse(431);
+            } catch (IllegalArgumentException e) {
+                requestStart = System.nanoTime();
+                if (DEBUG) {
+                    System.out.println("printing request:\n" + e.getMessage());
+                }
+                return errorResponse(400);
+            }
+            requestStart = System.nanoTime();
+            HTTPRequest httpRequest = parser.getRequest();
+            request = httpRequest;
+
+            // Read the HTTP request body through the buffer, starting with what is already buffered
+            if (RequestBodyDecoder.hasBody(httpRequest)) {
+                try {
+                    RequestBodyDecoder body = new RequestBodyDecoder(httpRequest, MAX_BODY_SIZE);
+                    while (!body.feed(buffer)) {
+                        if (!fill(in, buffer)) {
+                            // the client went away in the middle of the body
+                            return null;
+                        }
+                    }
+                } catch (SocketTimeoutException e) {
+                    return readTimedOut();
+                } catch (RequestBodyDecoder.BodyTooLargeException e) {
+                    return errorResponse(413);
+                } catch (IllegalArgumentException e) {
+                    return errorResponse(400);
+                }
             }
-            return normalizedPath;
-        }
 
-        private String generateResponseHeader(int statusCode, String filePath, byte[] content, String contentType, boolean isChunked) { 
-            String statusMessage = switch (statusCode) {
-                case 200 -> "OK";
-                case 404 -> "Not Found";
-                case 501 -> "Not Implemented";
-                case 400 -> "Bad Request";
-                case 500 -> "Internal Server Error";
-                default -> "";
-            };
+            return processRequest(httpRequest, allowKeepAlive);
+        }
 
-            StringBuilder responseBuilder = new StringBuilder();
-            responseBuilder.append("HTTP/1.1 ").append(statusCode).append(" ").append(statusMessage).append("\r\n");
-            
-            if (contentType != null) {
-                responseBuilder.append("Content-Type: ").append(contentType).append("\r\n");
-            }
-            
-            if (content != null) {
-                responseBuilder.append("Content-Length: ").append(content.length).append("\r\n");
+        // An idle connection is closed silently after the keep-alive timeout, a request that was
+        // started but not finished within readTimeout is answered with 408 and the connection closed.
+        private HTTPResponse readTimedOut() throws SocketTimeoutException {
+            if (readStarted == 0) {
+                throw new SocketTimeoutException();
             }
-
-            if (isChunked) {
-                responseBuilder.append("Transfer-Encoding: chunked\r\n");
+            if (request == null) {
+                requestStart = System.nanoTime();
             }
-            
-            responseBuilder.append("\r\n");
-            return responseBuilder.toString();
+            return errorResponse(408);
         }
-    
-        
-        private String retrieveContentType(File file) {
-            String filePath = file.getAbsolutePath();
 
-            if (filePath.endsWith(".html")) {
-                return "text/html";
-            } else if (filePath.endsWith(".jpg") || filePath.endsWith(".gif") || filePath.endsWith(".png") ||filePath.endsWith(".bmp") ) {
-                return "image";
-            } else if (filePath.endsWith(".ico")) {
-                return "icon";
+        // Reads more bytes from the socket into the buffer, returns false at the end of the stream.
+        // Once a request has started the whole of it must arrive within readTimeout, however slowly
+        // the bytes trickle in, so a slowloris client cannot hold the thread.
+        private boolean fill(InputStream in, ByteBuffer buffer) throws IOException {
+            if (readStarted == 0) {
+                // set before the check, so the shutdown hook either sees this handler idle or the handler sees the flag
+                idle = true;
+                if (shuttingDown) {
+                    return false;
+                }
+                socket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
             } else {
-                return "application/octet-stream";
-            }
-        }
-        
-
-        private String generateParamsInfoPage(HashMap<String, String> params) {
-
-            // Convert the HashMap to TreeMap to sort by keys
-            TreeMap<String, String> sortedMap = new TreeMap<>(params);
-            
-            StringBuilder htmlBuilder = new StringBuilder();
-            htmlBuilder.append("<!DOCTYPE html>\n");
-            htmlBuilder.append("<html>\n");
-            htmlBuilder.append("<head>\n");
-            htmlBuilder.append("<title>Submitted Parameters</title>\n");
-            htmlBuilder.append("</head>\n");
-            htmlBuilder.append("<body>\n");
-            htmlBuilder.append("<h1>Submitted Parameters</h1>\n");
-            htmlBuilder.append("<ul>\n");
-            for (Map.Entry<String, String> entry : sortedMap.entrySet()) {
-                htmlBuilder.append("<li>").append(entry.getKey()).append(": ").append(entry.getValue()).append("</li>\n"); }
-            htmlBuilder.append("</ul>\n");
-            htmlBuilder.append("</body>\n");
-            htmlBuilder.append("</html>\n");
-            return htmlBuilder.toString();
+                long remaining = readStarted + READ_TIMEOUT - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException();
+                }
+                socket.setSoTimeout((int) remaining);
+            }
+            buffer.compact();
+            int count = in.read(buffer.array(), buffer.position(), buffer.remaining());
+            idle = false;
+            if (count > 0) {
+                buffer.position(buffer.position() + count);
+            }
+            buffer.flip();
+            if (count > 0 && readStarted == 0) {
+                readStarted = System.currentTimeMillis();
+            }
+            return count >= 0;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,114 @@
+import benchmarks.HotPath;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.SortedMap;
+
+// Implements the benchmarks' view of the server, see jmh/benchmarks/HotPath.java
+public class HotPathImpl implements HotPath {
+    @Override
+    public RequestParser byteParser() {
+        HTTPRequestParser parser = new HTTPRequestParser();
+        return request -> {
+            parser.reset();
+            parser.parse(request);
+            return parser.getRequest().getParameters();
+        };
+    }
+
+    @Override
+    public Map<String, String> parseString(String header) {
+        return new HTTPRequest(header, "").getParameters();
+    }
+
+    @Override
+    public String keepAliveHeader(byte[] content) {
+        HTTPResponse response = new HTTPResponse(200, "text/html", content, false);
+        response.setKeepAlive(true);
+        response.addHeader("Keep-Alive", "timeout=5, max=100");
+        return response.getHeader();
+    }
+
+    @Override
+    public String notFoundHeader() {
+        return new HTTPResponse(404).getHeader();
+    }
+
+    @Override
+    public void setChunkSize(int size) {
+        HTTPResponse.setChunkSize(size);
+    }
+
+    @Override
+    public void writeChunked(byte[] content, OutputStream out) throws IOException {
+        new HTTPResponse(200, "application/octet-stream", content, true).writeTo(out);
+    }
+
+    @Override
+    public String renderParams(SortedMap<String, String> params) {
+        return ParamStore.render(params);
+    }
+
+    @Override
+    public ParamsPage openParamsPage(Path file, SortedMap<String, String> params) {
+        ParamStore store = new ParamStore(file);
+        store.putAll(params);
+        return new ParamsPage() {
+            @Override
+            public byte[] page() {
+                return store.getPage();
+            }
+
+            @Override
+            public void close() {
+                store.close();
+            }
+        };
+    }
+
+    @Override
+    public FileLookup diskLookup(String root) throws IOException {
+        String realRoot = Path.of(root).toRealPath() + "/";
+        return new FileLookup() {
+            @Override
+            public long lookup(String name) {
+                String path = realRoot + name;
+                if (path.contains("../")) {
+                    path = path.replaceAll("\\.\\./", "");
+                }
+                File file = new File(path);
+                if (!file.exists()) {
+                    return -1;
+                }
+                return file.length() + file.lastModified() + FileIndex.contentType(file.getName()).length();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public FileLookup indexLookup(String root) throws IOException {
+        FileIndex index = FileIndex.open(root);
+        return new FileLookup() {
+            @Override
+            public long lookup(String name) {
+                FileIndex.Metadata metadata = index.get(name);
+                if (metadata == null) {
+                    return -1;
+                }
+                return metadata.getLength() + metadata.getLastModified() + metadata.getContentType().length();
+            }
+
+            @Override
+            public void close() {
+                index.close();
+            }
+        };
+    }
+}
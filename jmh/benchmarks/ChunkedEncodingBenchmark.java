@@ -0,0 +1,64 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Chunked encoding of the files of the document root, the bundled ones range from 2 KB to 300 KB.
+// Run from the repository root, or pass -p htmlDirectory=<path>.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkedEncodingBenchmark {
+    @Param({"index.html", "favicon.ico", "bob1.png", "alice.png"})
+    public String file;
+
+    @Param("8192")
+    public int chunkSize;
+
+    @Param("html")
+    public String htmlDirectory;
+
+    private HotPath hotPath;
+    private byte[] content;
+
+    @Setup
+    public void setUp() throws IOException {
+        hotPath = HotPath.load();
+        hotPath.setChunkSize(chunkSize);
+        content = Files.readAllBytes(Path.of(htmlDirectory, file));
+    }
+
+    @Benchmark
+    public void encode(Blackhole blackhole) throws IOException {
+        hotPath.writeChunked(content, new OutputStream() {
+            @Override
+            public void write(int b) {
+                blackhole.consume(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                blackhole.consume(b);
+                blackhole.consume(len);
+            }
+        });
+    }
+}
@@ -0,0 +1,67 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// What a request for a static file needs before any content is read: existence, size, modification
+// time and content type, once from disk per request and once from the FileIndex. Every call looks up
+// the next file of the document root.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileLookupBenchmark {
+    @Param("html")
+    public String htmlDirectory;
+
+    private String[] pages;
+    private HotPath.FileLookup disk;
+    private HotPath.FileLookup index;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<String> names;
+        try (Stream<Path> files = Files.list(Path.of(htmlDirectory))) {
+            names = files.filter(Files::isRegularFile).map(file -> file.getFileName().toString()).sorted().toList();
+        }
+        pages = names.toArray(new String[0]);
+        HotPath hotPath = HotPath.load();
+        disk = hotPath.diskLookup(htmlDirectory);
+        index = hotPath.indexLookup(htmlDirectory);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        disk.close();
+        index.close();
+    }
+
+    @Benchmark
+    public long stat() {
+        return disk.lookup(pages[next++ % pages.length]);
+    }
+
+    @Benchmark
+    public long fileIndex() {
+        return index.lookup(pages[next++ % pages.length]);
+    }
+}
@@ -0,0 +1,63 @@
+package benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.SortedMap;
+
+// The server code the benchmarks measure. The server's classes are in the default package, which a
+// named package cannot import and JMH does not take benchmarks from, so the implementation is
+// jmh/HotPathImpl.java in the default package and the benchmarks load it by name.
+public interface HotPath {
+    static HotPath load() {
+        try {
+            return (HotPath) Class.forName("HotPathImpl").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("HotPathImpl is not on the classpath", e);
+        }
+    }
+
+    // a file of the document root as it would be served
+    interface FileLookup extends Closeable {
+        // length + last modified + content type length, missing files give -1
+        long lookup(String name);
+    }
+
+    // an HTTPRequestParser reused across requests, the way a connection uses it
+    interface RequestParser {
+        // parses the request in the buffer and returns its parameters
+        Map<String, String> parse(ByteBuffer request);
+    }
+
+    // params_info.html held by a ParamStore
+    interface ParamsPage extends Closeable {
+        byte[] page();
+    }
+
+    RequestParser byteParser();
+
+    // the HTTPRequest String constructor the parser replaced, returns the request's parameters
+    Map<String, String> parseString(String header);
+
+    // a 200 keep-alive response with the content, the header as it is written
+    String keepAliveHeader(byte[] content);
+
+    String notFoundHeader();
+
+    void setChunkSize(int size);
+
+    // writes a 200 response with the content in chunked transfer encoding
+    void writeChunked(byte[] content, OutputStream out) throws IOException;
+
+    String renderParams(SortedMap<String, String> params);
+
+    ParamsPage openParamsPage(Path file, SortedMap<String, String> params);
+
+    // checks the file on disk for every request, the way requests were served before the FileIndex
+    FileLookup diskLookup(String root) throws IOException;
+
+    FileLookup indexLookup(String root) throws IOException;
+}
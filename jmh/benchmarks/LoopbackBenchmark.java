@@ -0,0 +1,119 @@
+package benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// End to end keep-alive throughput against a WebServer already running on loopback, every benchmark
+// thread is one client connection, e.g. -t 16 -p port=8080. The connection is opened again when the
+// server closes it after its keep-alive maximum.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+    @Param("localhost")
+    public String host;
+
+    @Param("8080")
+    public int port;
+
+    @Param("/index.html")
+    public String path;
+
+    private byte[] request;
+    private Socket socket;
+    private OutputStream out;
+    private InputStream in;
+    private boolean closeAfterResponse;
+
+    @Setup
+    public void setUp() throws IOException {
+        request = ("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        connect();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        socket.close();
+    }
+
+    @Benchmark
+    public int request() throws IOException {
+        out.write(request);
+        out.flush();
+        int length = readResponse();
+        if (length < 0) {
+            // closed before the response, the request goes again on a new connection
+            connect();
+            out.write(request);
+            out.flush();
+            length = readResponse();
+            if (length < 0) {
+                throw new IOException("the server closed the connection without a response");
+            }
+        }
+        if (closeAfterResponse) {
+            connect();
+        }
+        return length;
+    }
+
+    private void connect() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = socket.getOutputStream();
+        in = new BufferedInputStream(socket.getInputStream());
+        closeAfterResponse = false;
+    }
+
+    // Reads one Content-Length framed response and returns its length, -1 when the connection was
+    // closed before it
+    private int readResponse() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int contentLength = 0;
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                String header = line.toString().strip();
+                if (header.isEmpty()) {
+                    break;
+                }
+                if (header.startsWith("Content-Length:")) {
+                    contentLength = Integer.parseInt(header.substring("Content-Length:".length()).strip());
+                } else if (header.equals("Connection: close")) {
+                    closeAfterResponse = true;
+                }
+                line.setLength(0);
+            } else {
+                line.append((char) b);
+            }
+        }
+        if (b < 0) {
+            return -1;
+        }
+        in.skipNBytes(contentLength);
+        return contentLength;
+    }
+}
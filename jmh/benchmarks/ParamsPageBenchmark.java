@@ -0,0 +1,61 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Rendering params_info.html from scratch against serving the page ParamStore cached for the current version
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParamsPageBenchmark {
+    private HotPath hotPath;
+    private TreeMap<String, String> params;
+    private Path file;
+    private HotPath.ParamsPage page;
+
+    @Setup
+    public void setUp() throws IOException {
+        hotPath = HotPath.load();
+        params = new TreeMap<>();
+        params.put("sender", "alice");
+        params.put("receiver", "bob");
+        params.put("subject", "benchmark");
+        params.put("message", "hello from the params page benchmark");
+        params.put("urgent", "on");
+        file = Files.createTempFile("params_info", ".html");
+        page = hotPath.openParamsPage(file, params);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        page.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public String render() {
+        return hotPath.renderParams(params);
+    }
+
+    @Benchmark
+    public byte[] cached() {
+        return page.page();
+    }
+}
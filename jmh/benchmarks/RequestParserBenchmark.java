@@ -0,0 +1,62 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// HTTPRequestParser against the HTTPRequest String constructor on the same request, the String
+// constructor gets the header the way the old ClientHandler built it
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParserBenchmark {
+    // a typical browser request for a page with a query string
+    private static final String SAMPLE_REQUEST = "GET /index.html?sender=alice&receiver=bob HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Referer: http://localhost:8080/\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "\r\n";
+
+    private HotPath hotPath;
+    private HotPath.RequestParser parser;
+    private String header;
+    private ByteBuffer bytes;
+
+    @Setup
+    public void setUp() {
+        hotPath = HotPath.load();
+        parser = hotPath.byteParser();
+        header = SAMPLE_REQUEST.substring(0, SAMPLE_REQUEST.length() - 2);
+        bytes = ByteBuffer.wrap(SAMPLE_REQUEST.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void stringConstructor(Blackhole blackhole) {
+        blackhole.consume(hotPath.parseString(header));
+    }
+
+    @Benchmark
+    public void byteParser(Blackhole blackhole) {
+        bytes.rewind();
+        blackhole.consume(parser.parse(bytes));
+    }
+}
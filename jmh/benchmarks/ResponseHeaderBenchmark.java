@@ -0,0 +1,42 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Response header generation for a keep-alive page and for a 404 that closes the connection
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseHeaderBenchmark {
+    private HotPath hotPath;
+    // the size of html/index.html
+    private final byte[] content = new byte[2205];
+
+    @Setup
+    public void setUp() {
+        hotPath = HotPath.load();
+    }
+
+    @Benchmark
+    public void keepAlive(Blackhole blackhole) {
+        blackhole.consume(hotPath.keepAliveHeader(content));
+    }
+
+    @Benchmark
+    public void notFound(Blackhole blackhole) {
+        blackhole.consume(hotPath.notFoundHeader());
+    }
+}
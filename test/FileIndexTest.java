@@ -0,0 +1,60 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Symbolic links are served only while they resolve inside the document root
+class FileIndexTest {
+    @TempDir
+    Path directory;
+
+    private Path root;
+
+    @BeforeEach
+    void createRoot() throws IOException {
+        root = Files.createDirectory(directory.resolve("root"));
+        Files.writeString(root.resolve("index.html"), "inside");
+        Files.createDirectory(root.resolve("pages"));
+        Files.writeString(root.resolve("pages/page.html"), "page");
+        Path outside = Files.createDirectory(directory.resolve("outside"));
+        Files.writeString(outside.resolve("secret.txt"), "secret");
+
+        Files.createSymbolicLink(root.resolve("link.html"), root.resolve("index.html"));
+        Files.createSymbolicLink(root.resolve("secret.txt"), outside.resolve("secret.txt"));
+        Files.createSymbolicLink(root.resolve("outside"), outside);
+        Files.createSymbolicLink(root.resolve("relative.txt"), Path.of("../outside/secret.txt"));
+    }
+
+    @Test
+    void indexSkipsLinksOutOfTheRoot() throws IOException {
+        FileIndex index = FileIndex.open(root.toString());
+        try {
+            assertNotNull(index.get("index.html"));
+            assertNotNull(index.get("pages/page.html"));
+            assertEquals(6, index.get("link.html").getLength());
+            assertNull(index.get("secret.txt"));
+            assertNull(index.get("relative.txt"));
+            assertNull(index.get("outside/secret.txt"));
+            assertEquals(3, index.size());
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    void statSkipsLinksOutOfTheRoot() {
+        String rootPath = root + "/";
+        assertNotNull(FileIndex.stat(root.resolve("index.html").toFile(), rootPath));
+        assertNotNull(FileIndex.stat(root.resolve("link.html").toFile(), rootPath));
+        assertNull(FileIndex.stat(root.resolve("secret.txt").toFile(), rootPath));
+        assertNull(FileIndex.stat(root.resolve("relative.txt").toFile(), rootPath));
+        assertNull(FileIndex.stat(root.resolve("outside/secret.txt").toFile(), rootPath));
+        assertNull(FileIndex.stat(root.resolve("missing.html").toFile(), rootPath));
+    }
+}
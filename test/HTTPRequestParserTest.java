@@ -0,0 +1,185 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+// The header limit answered with 431, requests arriving in pieces, and pipelined requests
+class HTTPRequestParserTest {
+    private static final String REQUEST = "GET /index.html?name=value&empty HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "User-Agent: test\r\n"
+            + "Accept-Encoding: gzip\r\n"
+            + "X-Unknown: skipped\r\n"
+            + "Connection: keep-alive\r\n"
+            + "\r\n";
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static void assertRequest(HTTPRequest request) {
+        assertEquals("GET", request.getType());
+        assertEquals("/index.html", request.getRequestedPage());
+        assertEquals("HTTP/1.1", request.getVersion());
+        assertEquals("test", request.getUserAgent());
+        assertEquals("gzip", request.getAcceptEncoding());
+        assertEquals("keep-alive", request.getConnection());
+        assertEquals("value", request.getParameters().get("name"));
+        assertEquals("", request.getParameters().get("empty"));
+    }
+
+    @Test
+    void wholeRequest() {
+        HTTPRequestParser parser = new HTTPRequestParser();
+        ByteBuffer buffer = bytes(REQUEST + "body");
+        assertTrue(parser.parse(buffer));
+        assertRequest(parser.getRequest());
+        // the buffer is left at the body
+        assertEquals(4, buffer.remaining());
+    }
+
+    @Test
+    void requestSplitAtEveryByte() {
+        HTTPRequestParser parser = new HTTPRequestParser();
+        byte[] request = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < request.length - 1; i++) {
+            assertFalse(parser.parse(ByteBuffer.wrap(request, i, 1)));
+            assertTrue(parser.isStarted());
+        }
+        assertTrue(parser.parse(ByteBuffer.wrap(request, request.length - 1, 1)));
+        assertRequest(parser.getRequest());
+    }
+
+    @Test
+    void requestSplitAtEveryPoint() {
+        byte[] request = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+        HTTPRequestParser parser = new HTTPRequestParser();
+        for (int split = 1; split < request.length; split++) {
+            parser.reset();
+            assertFalse(parser.parse(ByteBuffer.wrap(request, 0, split)));
+            assertTrue(parser.parse(ByteBuffer.wrap(request, split, request.length - split)));
+            assertRequest(parser.getRequest());
+        }
+    }
+
+    @Test
+    void incompleteRequestHasNoRequestYet() {
+        HTTPRequestParser parser = new HTTPRequestParser();
+        assertFalse(parser.parse(bytes("GET / HTTP/1.1\r\nHost: localhost\r\n")));
+        assertThrows(IllegalStateException.class, parser::getRequest);
+    }
+
+    @Test
+    void pipelinedRequests() {
+        HTTPRequestParser parser = new HTTPRequestParser();
+        ByteBuffer buffer = bytes(REQUEST + "\r\nHEAD /other HTTP/1.0\r\n\r\nGET /last");
+        assertTrue(parser.parse(buffer));
+        assertRequest(parser.getRequest());
+
+        // an empty line between requests is skipped
+        parser.reset();
+        assertTrue(parser.parse(buffer));
+        HTTPRequest second = parser.getRequest();
+        assertEquals("HEAD", second.getType());
+        assertEquals("/other", second.getRequestedPage());
+        assertEquals("HTTP/1.0", second.getVersion());
+
+        parser.reset();
+        assertFalse(parser.parse(buffer));
+        assertFalse(buffer.hasRemaining());
+        assertTrue(parser.parse(bytes(" HTTP/1.1\r\n\r\n")));
+        assertEquals("/last", parser.getRequest().getRequestedPage());
+    }
+
+    @Test
+    void blankLinesDoNotStartARequest() {
+        HTTPRequestParser parser = new HTTPRequestParser();
+        assertFalse(parser.parse(bytes("\r\n\r\n")));
+        assertFalse(parser.isStarted());
+    }
+
+    @Test
+    void headerLargerThanTheLimit() {
+        HTTPRequestParser parser = new HTTPRequestParser(100);
+        ByteBuffer buffer = bytes("GET / HTTP/1.1\r\nUser-Agent: " + "a".repeat(100) + "\r\n\r\n");
+        assertThrows(HTTPRequestParser.HeaderTooLargeException.class, () -> parser.parse(buffer));
+        // and the server answers it with 431
+        assertTrue(WebServer.errorResponse(431).getHeader().startsWith("HTTP/1.1 431 Request Header Fields Too Large\r\n"));
+    }
+
+    @Test
+    void unknownHeaderLargerThanTheLimit() {
+        // values nobody reads are skipped in bulk, they still count
+        HTTPRequestParser parser = new HTTPRequestParser(100);
+        ByteBuffer buffer = bytes("GET / HTTP/1.1\r\nX-Padding: " + "a".repeat(100) + "\r\n\r\n");
+        assertThrows(HTTPRequestParser.HeaderTooLargeException.class, () -> parser.parse(buffer));
+    }
+
+    @Test
+    void headerLimitAcrossReads() {
+        HTTPRequestParser parser = new HTTPRequestParser(100);
+        assertFalse(parser.parse(bytes("GET / HTTP/1.1\r\n")));
+        for (int i = 0; i < 5; i++) {
+            assertFalse(parser.parse(bytes("X-Header-" + i + ": 1\r\n")));
+        }
+        assertThrows(HTTPRequestParser.HeaderTooLargeException.class, () -> parser.parse(bytes("X-Header-5: 1\r\n")));
+    }
+
+    @Test
+    void headerAtTheLimit() {
+        String request = "GET / HTTP/1.1\r\nX-Padding: ";
+        request += "a".repeat(100 - request.length() - 4) + "\r\n\r\n";
+        assertEquals(100, request.length());
+        HTTPRequestParser parser = new HTTPRequestParser(100);
+        assertTrue(parser.parse(bytes(request)));
+        assertEquals("/", parser.getRequest().getRequestedPage());
+    }
+
+    @Test
+    void blankLinesBeforeTheRequestDoNotCount() {
+        String request = "GET / HTTP/1.1\r\nX-Padding: ";
+        request += "a".repeat(100 - request.length() - 4) + "\r\n\r\n";
+        HTTPRequestParser parser = new HTTPRequestParser(100);
+        assertTrue(parser.parse(bytes("\r\n\r\n" + request)));
+    }
+
+    @Test
+    void limitAppliesToEachPipelinedRequest() {
+        HTTPRequestParser parser = new HTTPRequestParser(60);
+        ByteBuffer buffer = bytes("GET /a HTTP/1.1\r\nHost: localhost\r\n\r\n".repeat(10));
+        for (int i = 0; i < 10; i++) {
+            parser.reset();
+            assertTrue(parser.parse(buffer));
+        }
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void malformedRequests() {
+        HTTPRequestParser parser = new HTTPRequestParser();
+        for (String request : new String[] {"FETCH / HTTP/1.1\r\n\r\n", "GET index.html HTTP/1.1\r\n\r\n", "GET / HTTP/2.0\r\n\r\n",
+                "GET\r\n\r\n", "GET / HTTP/1.1\r\nNo colon\r\n\r\n", "POST / HTTP/1.1\r\nContent-Length: 12a\r\n\r\n",
+                "POST / HTTP/1.1\r\nContent-Length: 99999999999\r\n\r\n"}) {
+            parser.reset();
+            assertThrows(IllegalArgumentException.class, () -> parser.parse(bytes(request)), request);
+        }
+    }
+
+    @Test
+    void bodyFraming() {
+        HTTPRequestParser parser = new HTTPRequestParser();
+        assertTrue(parser.parse(bytes("POST / HTTP/1.1\r\nContent-Length: 42\r\n\r\n")));
+        assertEquals(42, parser.getRequest().getContentLength());
+        assertFalse(parser.getRequest().hasChunkedBody());
+
+        parser.reset();
+        assertTrue(parser.parse(bytes("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, Chunked\r\n\r\n")));
+        assertTrue(parser.getRequest().hasChunkedBody());
+        assertNull(parser.getRequest().getRawHeader());
+    }
+}
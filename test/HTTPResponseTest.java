@@ -0,0 +1,159 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Chunked file responses are read and framed a chunk at a time, never as the whole file
+class HTTPResponseTest {
+    private static final int CHUNK_SIZE = 4096;
+    // the largest size line, "ffffffff\r\n", and the CRLF after the data
+    private static final int FRAMING = 12;
+
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void restoreChunkSize() {
+        HTTPResponse.setChunkSize(HTTPResponse.DEFAULT_CHUNK_SIZE);
+    }
+
+    private byte[] largeFile(Path file, int length) throws IOException {
+        byte[] content = new byte[length];
+        new Random(1).nextBytes(content);
+        Files.write(file, content);
+        return content;
+    }
+
+    // the data of a chunked body, checking each size line against the data that follows
+    private static byte[] unchunk(byte[] body) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int position = 0;
+        while (true) {
+            int lineEnd = position;
+            while (body[lineEnd] != '\r') {
+                lineEnd++;
+            }
+            int size = Integer.parseInt(new String(body, position, lineEnd - position, StandardCharsets.US_ASCII), 16);
+            position = lineEnd + 2;
+            if (size == 0) {
+                assertEquals("\r\n", new String(body, position, body.length - position, StandardCharsets.US_ASCII));
+                return data.toByteArray();
+            }
+            assertTrue(size <= CHUNK_SIZE);
+            data.write(body, position, size);
+            position += size;
+            assertEquals('\r', body[position]);
+            assertEquals('\n', body[position + 1]);
+            position += 2;
+        }
+    }
+
+    @Test
+    void chunkedFileBodyHoldsOneChunkAtATime() throws IOException {
+        HTTPResponse.setChunkSize(CHUNK_SIZE);
+        Path file = directory.resolve("large.bin");
+        byte[] content = largeFile(file, 1024 * 1024 + 123);
+        HTTPResponse response = new HTTPResponse(200, "application/octet-stream", file.toFile(), content.length, true);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] previousArray = null;
+        int chunks = 0;
+        try (HTTPResponse.ChunkedFileBody chunked = response.openChunkedFileBody()) {
+            while (!chunked.isDone()) {
+                ByteBuffer chunk = chunked.next();
+                // every chunk comes in the same buffer, sized for one chunk
+                assertTrue(chunk.array().length <= 2 * (CHUNK_SIZE + FRAMING));
+                if (previousArray != null) {
+                    assertSame(previousArray, chunk.array());
+                }
+                previousArray = chunk.array();
+                body.write(chunk.array(), chunk.position(), chunk.remaining());
+                chunks++;
+            }
+        }
+        assertEquals((content.length + CHUNK_SIZE - 1) / CHUNK_SIZE, chunks);
+        assertArrayEquals(content, unchunk(body.toByteArray()));
+    }
+
+    @Test
+    void emptyFileIsOnlyTheLastChunk() throws IOException {
+        Path file = directory.resolve("empty.txt");
+        Files.write(file, new byte[0]);
+        HTTPResponse response = new HTTPResponse(200, "text/plain", file.toFile(), 0, true);
+        HTTPResponse.ChunkedFileBody chunked = response.openChunkedFileBody();
+        ByteBuffer chunk = chunked.next();
+        assertEquals("0\r\n\r\n", StandardCharsets.US_ASCII.decode(chunk).toString());
+        assertTrue(chunked.isDone());
+    }
+
+    @Test
+    void trailersFollowTheLastChunk() throws IOException {
+        Path file = directory.resolve("small.txt");
+        Files.writeString(file, "hello");
+        HTTPResponse response = new HTTPResponse(200, "text/plain", file.toFile(), 5, true);
+        response.addTrailer("X-Checksum", "abc");
+        HTTPResponse.ChunkedFileBody chunked = response.openChunkedFileBody();
+        assertEquals("5\r\nhello\r\n0\r\nX-Checksum: abc\r\n\r\n", StandardCharsets.US_ASCII.decode(chunked.next()).toString());
+        assertTrue(chunked.isDone());
+    }
+
+    @Test
+    void fileShorterThanAnnounced() throws IOException {
+        Path file = directory.resolve("shrunk.txt");
+        Files.writeString(file, "short");
+        HTTPResponse response = new HTTPResponse(200, "text/plain", file.toFile(), 10000, true);
+        HTTPResponse.ChunkedFileBody chunked = response.openChunkedFileBody();
+        chunked.next();
+        assertFalse(chunked.isDone());
+        assertThrows(IOException.class, chunked::next);
+        chunked.close();
+    }
+
+    @Test
+    void blockingWriteStreamsTheFileInChunks() throws IOException {
+        HTTPResponse.setChunkSize(CHUNK_SIZE);
+        Path file = directory.resolve("large.bin");
+        byte[] content = largeFile(file, 512 * 1024);
+        HTTPResponse response = new HTTPResponse(200, "application/octet-stream", file.toFile(), content.length, true);
+
+        // every write is at most one framed chunk, the header aside
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int[] largestWrite = new int[1];
+        response.writeTo(new OutputStream() {
+            @Override
+            public void write(int b) {
+                written.write(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                written.write(bytes, offset, length);
+                if (!new String(bytes, offset, Math.min(length, 9), StandardCharsets.US_ASCII).equals("HTTP/1.1 ")) {
+                    largestWrite[0] = Math.max(largestWrite[0], length);
+                }
+            }
+        });
+        assertTrue(largestWrite[0] <= CHUNK_SIZE + FRAMING);
+        byte[] all = written.toByteArray();
+        String text = new String(all, StandardCharsets.ISO_8859_1);
+        int bodyStart = text.indexOf("\r\n\r\n") + 4;
+        assertTrue(text.substring(0, bodyStart).contains("Transfer-Encoding: chunked\r\n"));
+        byte[] body = new byte[all.length - bodyStart];
+        System.arraycopy(all, bodyStart, body, 0, body.length);
+        assertArrayEquals(content, unchunk(body));
+    }
+}
@@ -0,0 +1,212 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+// The examples of RFC 7541 Appendix C, decoded in sequence on one decoder like the RFC does, and the
+// malformed input the decoder must refuse
+class HpackTest {
+    private static final int MAX_LIST_SIZE = 16 * 1024;
+
+    // C.3, requests without Huffman coding
+    private static final String C_3_1 = "828684410f7777772e6578616d706c652e636f6d";
+    private static final String C_3_2 = "828684be58086e6f2d6361636865";
+    private static final String C_3_3 = "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565";
+
+    // C.4, the same requests with Huffman coding
+    private static final String C_4_1 = "828684418cf1e3c2e5f23a6ba0ab90f4ff";
+    private static final String C_4_2 = "828684be5886a8eb10649cbf";
+    private static final String C_4_3 = "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf";
+
+    // C.5, responses without Huffman coding in a 256 byte table, which evicts as they come
+    private static final String C_5_1 = "4803333032580770726976617465611d4d6f6e2c203231204f637420323031332032303a31333a323120474d54"
+            + "6e1768747470733a2f2f7777772e6578616d706c652e636f6d";
+    private static final String C_5_2 = "4803333037c1c0bf";
+    private static final String C_5_3 = "88c1611d4d6f6e2c203231204f637420323031332032303a31333a323220474d54c05a04677a69707738666f6f3d"
+            + "4153444a4b48514b425a584f5157454f50495541585157454f49553b206d61782d6167653d333630303b2076657273696f6e3d31";
+
+    // C.6, the same responses with Huffman coding
+    private static final String C_6_1 = "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d29ad171863c78f0b97c8e9ae82ae43d3";
+    private static final String C_6_2 = "4883640effc1c0bf";
+    private static final String C_6_3 = "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007";
+
+    private static final List<String> REQUEST_1 = List.of(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+    private static final List<String> REQUEST_2 = List.of(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+            "cache-control", "no-cache");
+    private static final List<String> REQUEST_3 = List.of(":method", "GET", ":scheme", "https", ":path", "/index.html",
+            ":authority", "www.example.com", "custom-key", "custom-value");
+
+    private static final List<String> RESPONSE_1 = List.of(":status", "302", "cache-control", "private",
+            "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com");
+    private static final List<String> RESPONSE_2 = List.of(":status", "307", "cache-control", "private",
+            "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com");
+    private static final List<String> RESPONSE_3 = List.of(":status", "200", "cache-control", "private",
+            "date", "Mon, 21 Oct 2013 20:13:22 GMT", "location", "https://www.example.com", "content-encoding", "gzip",
+            "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+
+    private static byte[] hex(String hex) {
+        return HexFormat.of().parseHex(hex);
+    }
+
+    private static List<String> decode(Hpack.Decoder decoder, String hex) {
+        byte[] block = hex(hex);
+        List<String> fields = new ArrayList<>();
+        decoder.decode(block, 0, block.length, fields, MAX_LIST_SIZE);
+        return fields;
+    }
+
+    @Test
+    void literalWithIndexing() {
+        // C.2.1, then the entry it added is found at the first dynamic index
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertEquals(List.of("custom-key", "custom-header"), decode(decoder, "400a637573746f6d2d6b65790d637573746f6d2d686561646572"));
+        assertEquals(List.of("custom-key", "custom-header"), decode(decoder, "be"));
+    }
+
+    @Test
+    void literalWithoutIndexing() {
+        // C.2.2 and C.2.3 leave the dynamic table empty
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertEquals(List.of(":path", "/sample/path"), decode(decoder, "040c2f73616d706c652f70617468"));
+        assertEquals(List.of("password", "secret"), decode(decoder, "100870617373776f726406736563726574"));
+        assertThrows(Hpack.CompressionException.class, () -> decode(decoder, "be"));
+    }
+
+    @Test
+    void indexedField() {
+        // C.2.4
+        assertEquals(List.of(":method", "GET"), decode(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "82"));
+    }
+
+    @Test
+    void requestsWithoutHuffman() {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertEquals(REQUEST_1, decode(decoder, C_3_1));
+        assertEquals(REQUEST_2, decode(decoder, C_3_2));
+        assertEquals(REQUEST_3, decode(decoder, C_3_3));
+    }
+
+    @Test
+    void requestsWithHuffman() {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertEquals(REQUEST_1, decode(decoder, C_4_1));
+        assertEquals(REQUEST_2, decode(decoder, C_4_2));
+        assertEquals(REQUEST_3, decode(decoder, C_4_3));
+    }
+
+    @Test
+    void responsesEvictFromTheDynamicTable() {
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        assertEquals(RESPONSE_1, decode(decoder, C_5_1));
+        // :status 302 is evicted to make room for :status 307, cache-control is now the oldest entry
+        assertEquals(RESPONSE_2, decode(decoder, C_5_2));
+        assertEquals(List.of("cache-control", "private"), decode(decoder, "c1"));
+        assertThrows(Hpack.CompressionException.class, () -> decode(decoder, "c2"));
+        // three entries are left: set-cookie, content-encoding and the new date, 215 bytes
+        assertEquals(RESPONSE_3, decode(decoder, C_5_3));
+        assertEquals(List.of("set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"), decode(decoder, "be"));
+        assertEquals(List.of("content-encoding", "gzip"), decode(decoder, "bf"));
+        assertEquals(List.of("date", "Mon, 21 Oct 2013 20:13:22 GMT"), decode(decoder, "c0"));
+        assertThrows(Hpack.CompressionException.class, () -> decode(decoder, "c1"));
+    }
+
+    @Test
+    void responsesWithHuffman() {
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        assertEquals(RESPONSE_1, decode(decoder, C_6_1));
+        assertEquals(RESPONSE_2, decode(decoder, C_6_2));
+        assertEquals(RESPONSE_3, decode(decoder, C_6_3));
+        assertThrows(Hpack.CompressionException.class, () -> decode(decoder, "c1"));
+    }
+
+    @Test
+    void encoderProducesTheHuffmanRequestExamples() {
+        // the encoder indexes these fields and Huffman codes their strings the way C.4 does
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        assertArrayEquals(hex(C_4_1), encoder.encode(REQUEST_1));
+        assertArrayEquals(hex(C_4_2), encoder.encode(REQUEST_2));
+        assertArrayEquals(hex(C_4_3), encoder.encode(REQUEST_3));
+    }
+
+    @Test
+    void encoderAndDecoderAgreeAcrossTableSizeChanges() {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        List<List<String>> blocks = List.of(RESPONSE_1, RESPONSE_2, RESPONSE_3, RESPONSE_3, RESPONSE_1);
+        for (int i = 0; i < blocks.size(); i++) {
+            if (i == 2) {
+                encoder.setMaxTableSize(0);
+                encoder.setMaxTableSize(100);
+            }
+            byte[] block = encoder.encode(blocks.get(i));
+            List<String> fields = new ArrayList<>();
+            decoder.decode(block, 0, block.length, fields, MAX_LIST_SIZE);
+            assertEquals(blocks.get(i), fields);
+        }
+    }
+
+    @Test
+    void integerBeyondThirtyOneBitsIsRefused() {
+        // an indexed field whose index continues for more bytes than any int needs
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertThrows(Hpack.CompressionException.class, () -> decode(decoder, "ffffffffffff0f"));
+    }
+
+    @Test
+    void truncatedIntegerIsRefused() {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertThrows(Hpack.CompressionException.class, () -> decode(decoder, "ff80"));
+    }
+
+    @Test
+    void multiByteIntegerIsDecoded() {
+        // C.1.2: 1337 with a 5 bit prefix, here as a table size update followed by an indexed field
+        Hpack.Decoder decoder = new Hpack.Decoder(2048);
+        assertEquals(List.of(":method", "GET"), decode(decoder, "3f9a0a82"));
+    }
+
+    @Test
+    void tableSizeUpdateBeyondTheSettingIsRefused() {
+        Hpack.Decoder decoder = new Hpack.Decoder(1024);
+        assertThrows(Hpack.CompressionException.class, () -> decode(decoder, "3fe11f"));
+    }
+
+    @Test
+    void tableSizeUpdateAfterAFieldIsRefused() {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertThrows(Hpack.CompressionException.class, () -> decode(decoder, "8220"));
+    }
+
+    @Test
+    void huffmanPaddingMustBeOnes() {
+        // :authority with the value "a" (00011) padded with zeros
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertEquals(List.of(":authority", "a"), decode(decoder, "01811f"));
+        assertThrows(Hpack.CompressionException.class, () -> decode(decoder, "018118"));
+    }
+
+    @Test
+    void huffmanPaddingLongerThanAByteIsRefused() {
+        // :authority with the value "a" (00011) followed by eleven padding bits
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertThrows(Hpack.CompressionException.class, () -> decode(decoder, "01821fff"));
+    }
+
+    @Test
+    void huffmanEosIsRefused() {
+        // the 30 one bits of EOS at the start of the value
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertThrows(Hpack.CompressionException.class, () -> decode(decoder, "0184ffffffff"));
+    }
+
+    @Test
+    void headerListLimit() {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        byte[] block = hex(C_3_1);
+        assertThrows(Hpack.CompressionException.class, () -> decoder.decode(block, 0, block.length, new ArrayList<>(), 100));
+    }
+}
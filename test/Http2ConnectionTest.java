@@ -0,0 +1,397 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+// Drives an Http2Connection with the frames a client would send and reads back what it produces.
+// Requests are kept from reaching WebServer.processRequest, which needs the server's configuration:
+// responses come from upgrade() or are errors found before the request is complete.
+class Http2ConnectionTest {
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+
+    private static final int MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int ENABLE_PUSH = 0x2;
+    private static final int INITIAL_WINDOW_SIZE = 0x4;
+    private static final int MAX_FRAME_SIZE = 0x5;
+
+    private record Frame(int type, int flags, int streamId, byte[] payload) {
+        int intAt(int offset) {
+            return ByteBuffer.wrap(payload).getInt(offset);
+        }
+    }
+
+    private static byte[] frame(int type, int flags, int streamId, byte[] payload) {
+        ByteBuffer bytes = ByteBuffer.allocate(9 + payload.length);
+        bytes.put((byte) (payload.length >>> 16)).put((byte) (payload.length >>> 8)).put((byte) payload.length);
+        bytes.put((byte) type).put((byte) flags).putInt(streamId).put(payload);
+        return bytes.array();
+    }
+
+    private static byte[] settings(int... idsAndValues) {
+        ByteBuffer payload = ByteBuffer.allocate(idsAndValues.length / 2 * 6);
+        for (int i = 0; i < idsAndValues.length; i += 2) {
+            payload.putShort((short) idsAndValues[i]).putInt(idsAndValues[i + 1]);
+        }
+        return payload.array();
+    }
+
+    private static byte[] windowUpdate(int streamId, int increment) {
+        return frame(WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(increment).array());
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteBuffer bytes = ByteBuffer.allocate(Arrays.stream(parts).mapToInt(part -> part.length).sum());
+        for (byte[] part : parts) {
+            bytes.put(part);
+        }
+        return bytes.array();
+    }
+
+    private static void send(Http2Connection connection, byte[]... frames) {
+        connection.receive(ByteBuffer.wrap(concat(frames)));
+    }
+
+    // everything the connection has ready, split into frames
+    private static List<Frame> produced(Http2Connection connection) {
+        ByteBuffer out = ByteBuffer.allocate(Http2Connection.OUTPUT_BUFFER_SIZE);
+        List<Frame> frames = new ArrayList<>();
+        while (true) {
+            out.clear();
+            connection.produce(out);
+            out.flip();
+            if (!out.hasRemaining()) {
+                return frames;
+            }
+            while (out.hasRemaining()) {
+                int length = (out.get() & 0xff) << 16 | (out.get() & 0xff) << 8 | out.get() & 0xff;
+                int type = out.get() & 0xff;
+                int flags = out.get() & 0xff;
+                int streamId = out.getInt() & 0x7fffffff;
+                byte[] payload = new byte[length];
+                out.get(payload);
+                frames.add(new Frame(type, flags, streamId, payload));
+            }
+        }
+    }
+
+    // a connection past the preface and the client's SETTINGS, with the server's SETTINGS and ACK read
+    private static Http2Connection open(long maxBodySize, int maxStreams) {
+        Http2Connection connection = new Http2Connection("127.0.0.1", maxBodySize, maxStreams);
+        send(connection, Http2Connection.PREFACE, frame(SETTINGS, 0, 0, settings()));
+        assertEquals(2, produced(connection).size());
+        return connection;
+    }
+
+    private static void assertConnectionError(int errorCode, byte[]... frames) {
+        Http2Connection connection = new Http2Connection("127.0.0.1", 1024, 100);
+        produced(connection);
+        send(connection, Http2Connection.PREFACE);
+        send(connection, frames);
+        List<Frame> out = produced(connection);
+        assertEquals(1, out.size());
+        assertEquals(GOAWAY, out.get(0).type());
+        assertEquals(errorCode, out.get(0).intAt(4));
+        assertTrue(connection.isClosed());
+    }
+
+    private static byte[] headerBlock(String... fields) {
+        return new Hpack.Encoder().encode(List.of(fields));
+    }
+
+    private static String status(Hpack.Decoder decoder, Frame headers) {
+        List<String> fields = new ArrayList<>();
+        decoder.decode(headers.payload(), 0, headers.payload().length, fields, 16 * 1024);
+        assertEquals(":status", fields.get(0));
+        return fields.get(1);
+    }
+
+    private static int dataLength(List<Frame> frames) {
+        return frames.stream().filter(frame -> frame.type() == DATA).mapToInt(frame -> frame.payload().length).sum();
+    }
+
+    // stream 1 answered through an h2c upgrade with a body of the given size
+    private static Http2Connection upgraded(byte[] upgradeSettings, int bodySize) {
+        Http2Connection connection = new Http2Connection("127.0.0.1", 1024, 100);
+        HTTPRequest request = new HTTPRequest("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n", "");
+        connection.upgrade(upgradeSettings, request, new HTTPResponse(200, "application/octet-stream", new byte[bodySize], false), System.nanoTime());
+        return connection;
+    }
+
+    @Test
+    void settingsAreExchangedAndPingsAnswered() {
+        Http2Connection connection = new Http2Connection("127.0.0.1", 1024, 100);
+        List<Frame> out = produced(connection);
+        assertEquals(1, out.size());
+        assertEquals(SETTINGS, out.get(0).type());
+        assertEquals(0, out.get(0).flags());
+        assertEquals(MAX_CONCURRENT_STREAMS, out.get(0).payload()[1]);
+        assertEquals(100, out.get(0).intAt(2));
+
+        byte[] ping = {1, 2, 3, 4, 5, 6, 7, 8};
+        send(connection, Http2Connection.PREFACE, frame(SETTINGS, 0, 0, settings()), frame(PING, 0, 0, ping));
+        out = produced(connection);
+        assertEquals(2, out.size());
+        assertEquals(SETTINGS, out.get(0).type());
+        assertEquals(ACK, out.get(0).flags());
+        assertEquals(0, out.get(0).payload().length);
+        assertEquals(PING, out.get(1).type());
+        assertEquals(ACK, out.get(1).flags());
+        assertArrayEquals(ping, out.get(1).payload());
+
+        // a PING acknowledgement is not answered
+        send(connection, frame(PING, ACK, 0, ping));
+        assertTrue(produced(connection).isEmpty());
+    }
+
+    @Test
+    void framesSplitAcrossReads() {
+        Http2Connection connection = new Http2Connection("127.0.0.1", 1024, 100);
+        produced(connection);
+        byte[] ping = {8, 7, 6, 5, 4, 3, 2, 1};
+        byte[] bytes = concat(Http2Connection.PREFACE, frame(SETTINGS, 0, 0, settings(ENABLE_PUSH, 0)), frame(PING, 0, 0, ping));
+        for (byte b : bytes) {
+            connection.receive(ByteBuffer.wrap(new byte[] {b}));
+        }
+        List<Frame> out = produced(connection);
+        assertEquals(2, out.size());
+        assertEquals(SETTINGS, out.get(0).type());
+        assertArrayEquals(ping, out.get(1).payload());
+    }
+
+    @Test
+    void invalidPreface() {
+        Http2Connection connection = new Http2Connection("127.0.0.1", 1024, 100);
+        produced(connection);
+        connection.receive(ByteBuffer.wrap("GET / HTTP/1.1\r\n\r\n".getBytes()));
+        List<Frame> out = produced(connection);
+        assertEquals(GOAWAY, out.get(0).type());
+        assertEquals(PROTOCOL_ERROR, out.get(0).intAt(4));
+    }
+
+    @Test
+    void settingsMustComeFirst() {
+        assertConnectionError(PROTOCOL_ERROR, frame(PING, 0, 0, new byte[8]));
+    }
+
+    @Test
+    void settingsLengthMustBeAMultipleOfSix() {
+        assertConnectionError(FRAME_SIZE_ERROR, frame(SETTINGS, 0, 0, new byte[5]));
+    }
+
+    @Test
+    void settingsAcknowledgementMustBeEmpty() {
+        assertConnectionError(FRAME_SIZE_ERROR, frame(SETTINGS, 0, 0, settings()), frame(SETTINGS, ACK, 0, settings(ENABLE_PUSH, 0)));
+    }
+
+    @Test
+    void settingsOnAStream() {
+        assertConnectionError(PROTOCOL_ERROR, frame(SETTINGS, 0, 1, settings()));
+    }
+
+    @Test
+    void invalidEnablePush() {
+        assertConnectionError(PROTOCOL_ERROR, frame(SETTINGS, 0, 0, settings(ENABLE_PUSH, 2)));
+    }
+
+    @Test
+    void initialWindowSizeAboveTheMaximum() {
+        assertConnectionError(FLOW_CONTROL_ERROR, frame(SETTINGS, 0, 0, settings(INITIAL_WINDOW_SIZE, 0x80000000)));
+    }
+
+    @Test
+    void maxFrameSizeBelowTheDefault() {
+        assertConnectionError(PROTOCOL_ERROR, frame(SETTINGS, 0, 0, settings(MAX_FRAME_SIZE, 16383)));
+    }
+
+    @Test
+    void frameLargerThanTheMaximumSize() {
+        // refused from its header, before the payload arrives
+        byte[] header = Arrays.copyOf(frame(DATA, 0, 1, new byte[0]), 9);
+        header[1] = 0x40;
+        header[2] = 0x01;
+        assertConnectionError(FRAME_SIZE_ERROR, frame(SETTINGS, 0, 0, settings()), header);
+    }
+
+    @Test
+    void windowUpdateOfZeroOnTheConnection() {
+        assertConnectionError(PROTOCOL_ERROR, frame(SETTINGS, 0, 0, settings()), windowUpdate(0, 0));
+    }
+
+    @Test
+    void connectionWindowOverflow() {
+        assertConnectionError(FLOW_CONTROL_ERROR, frame(SETTINGS, 0, 0, settings()), windowUpdate(0, 0x7fffffff));
+    }
+
+    @Test
+    void dataStopsAtTheWindowsUntilTheyAreUpdated() {
+        Http2Connection connection = upgraded(settings(), 100000);
+        send(connection, Http2Connection.PREFACE, frame(SETTINGS, 0, 0, settings()));
+        List<Frame> out = produced(connection);
+        assertEquals(SETTINGS, out.get(0).type());
+        assertEquals(HEADERS, out.get(1).type());
+        assertEquals(1, out.get(1).streamId());
+        assertEquals("200", status(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), out.get(1)));
+        assertEquals(SETTINGS, out.get(2).type());
+        assertEquals(ACK, out.get(2).flags());
+        // both windows start at 65535 bytes, sent in frames of at most 16384
+        assertEquals(65535, dataLength(out));
+        assertTrue(out.stream().allMatch(frame -> frame.payload().length <= 16384));
+        assertTrue(out.stream().noneMatch(frame -> frame.type() == DATA && (frame.flags() & END_STREAM) != 0));
+
+        // the stream's window alone is not enough while the connection's is used up
+        send(connection, windowUpdate(1, 50000));
+        assertTrue(produced(connection).isEmpty());
+
+        send(connection, windowUpdate(0, 100000));
+        out = produced(connection);
+        assertEquals(100000 - 65535, dataLength(out));
+        Frame last = out.get(out.size() - 1);
+        assertEquals(END_STREAM, last.flags() & END_STREAM);
+        assertFalse(connection.hasOpenStreams());
+    }
+
+    @Test
+    void initialWindowSizeChangesOpenStreams() {
+        Http2Connection connection = upgraded(settings(INITIAL_WINDOW_SIZE, 1000), 10000);
+        send(connection, Http2Connection.PREFACE, frame(SETTINGS, 0, 0, settings()));
+        assertEquals(1000, dataLength(produced(connection)));
+
+        // the difference to the previous setting is added to the stream's window
+        send(connection, frame(SETTINGS, 0, 0, settings(INITIAL_WINDOW_SIZE, 3000)));
+        assertEquals(2000, dataLength(produced(connection)));
+
+        // a smaller setting leaves the window negative, the stream waits for updates to bring it above 0
+        send(connection, frame(SETTINGS, 0, 0, settings(INITIAL_WINDOW_SIZE, 0)));
+        produced(connection);
+        send(connection, windowUpdate(1, 3000));
+        assertTrue(produced(connection).isEmpty());
+        send(connection, windowUpdate(1, 2000));
+        assertEquals(2000, dataLength(produced(connection)));
+        assertTrue(connection.hasOpenStreams());
+    }
+
+    @Test
+    void receivedDataIsGivenBackWithWindowUpdates() {
+        Http2Connection connection = open(1 << 20, 100);
+        send(connection, frame(HEADERS, END_HEADERS, 1, headerBlock(":method", "POST", ":scheme", "http", ":path", "/", ":authority", "localhost")));
+        byte[] data = frame(DATA, 0, 1, new byte[16384]);
+        send(connection, data);
+        assertTrue(produced(connection).isEmpty());
+
+        // half of a window received, on the connection and on the stream
+        send(connection, data);
+        List<Frame> out = produced(connection);
+        assertEquals(2, out.size());
+        assertEquals(WINDOW_UPDATE, out.get(0).type());
+        assertEquals(0, out.get(0).streamId());
+        assertEquals(32768, out.get(0).intAt(0));
+        assertEquals(WINDOW_UPDATE, out.get(1).type());
+        assertEquals(1, out.get(1).streamId());
+        assertEquals(32768, out.get(1).intAt(0));
+    }
+
+    @Test
+    void declaredBodyTooLargeAcrossContinuation() {
+        Http2Connection connection = open(10, 100);
+        byte[] block = headerBlock(":method", "POST", ":scheme", "http", ":path", "/upload", ":authority", "localhost", "content-length", "100");
+        int split = block.length / 2;
+        send(connection, frame(HEADERS, 0, 1, Arrays.copyOfRange(block, 0, split)));
+        assertTrue(produced(connection).isEmpty());
+        send(connection, frame(CONTINUATION, END_HEADERS, 1, Arrays.copyOfRange(block, split, block.length)));
+        List<Frame> out = produced(connection);
+        assertEquals(2, out.size());
+        assertEquals(HEADERS, out.get(0).type());
+        assertEquals("413", status(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), out.get(0)));
+        // the client is told to stop sending the body
+        assertEquals(RST_STREAM, out.get(1).type());
+        assertEquals(NO_ERROR, out.get(1).intAt(0));
+
+        // DATA already on its way is dropped without a connection error
+        send(connection, frame(DATA, END_STREAM, 1, new byte[100]));
+        assertTrue(produced(connection).isEmpty());
+        assertFalse(connection.isClosed());
+    }
+
+    @Test
+    void continuationMustFollowHeaders() {
+        Http2Connection connection = open(1024, 100);
+        byte[] block = headerBlock(":method", "GET", ":scheme", "http", ":path", "/");
+        send(connection, frame(HEADERS, END_STREAM, 1, block), frame(PING, 0, 0, new byte[8]));
+        List<Frame> out = produced(connection);
+        assertEquals(GOAWAY, out.get(0).type());
+        assertEquals(PROTOCOL_ERROR, out.get(0).intAt(4));
+    }
+
+    @Test
+    void streamsBeyondTheLimitAreRefused() {
+        Http2Connection connection = open(1024, 1);
+        send(connection, frame(HEADERS, END_HEADERS, 1, headerBlock(":method", "POST", ":scheme", "http", ":path", "/")));
+        send(connection, frame(HEADERS, END_HEADERS, 3, headerBlock(":method", "POST", ":scheme", "http", ":path", "/")));
+        List<Frame> out = produced(connection);
+        assertEquals(1, out.size());
+        assertEquals(RST_STREAM, out.get(0).type());
+        assertEquals(3, out.get(0).streamId());
+        assertEquals(REFUSED_STREAM, out.get(0).intAt(0));
+    }
+
+    @Test
+    void newStreamMayNotReuseAnEarlierId() {
+        Http2Connection connection = open(1024, 100);
+        send(connection, frame(HEADERS, END_HEADERS, 5, headerBlock(":method", "POST", ":scheme", "http", ":path", "/")));
+        send(connection, frame(HEADERS, END_HEADERS | END_STREAM, 3, headerBlock(":method", "GET", ":scheme", "http", ":path", "/")));
+        List<Frame> out = produced(connection);
+        assertEquals(1, out.size());
+        assertEquals(GOAWAY, out.get(0).type());
+        assertEquals(5, out.get(0).intAt(0));
+        assertEquals(PROTOCOL_ERROR, out.get(0).intAt(4));
+        assertTrue(connection.isClosed());
+    }
+
+    @Test
+    void trailersOfAResetStreamAreDropped() {
+        Http2Connection connection = open(1024, 1);
+        send(connection, frame(HEADERS, END_HEADERS, 1, headerBlock(":method", "POST", ":scheme", "http", ":path", "/")));
+        send(connection, frame(HEADERS, END_HEADERS, 3, headerBlock(":method", "POST", ":scheme", "http", ":path", "/")));
+        assertEquals(RST_STREAM, produced(connection).get(0).type());
+        // stream 3 was refused before its trailers arrived
+        send(connection, frame(HEADERS, END_HEADERS | END_STREAM, 3, headerBlock("x-checksum", "abc")));
+        assertTrue(produced(connection).isEmpty());
+        assertFalse(connection.isClosed());
+    }
+
+    @Test
+    void goAwayAnnouncesTheLastStream() {
+        Http2Connection connection = open(1024, 100);
+        send(connection, frame(HEADERS, END_HEADERS, 5, headerBlock(":method", "POST", ":scheme", "http", ":path", "/")));
+        connection.goAway();
+        List<Frame> out = produced(connection);
+        assertEquals(GOAWAY, out.get(0).type());
+        assertEquals(5, out.get(0).intAt(0));
+        assertEquals(NO_ERROR, out.get(0).intAt(4));
+        // the open stream is still finished before the connection closes
+        assertFalse(connection.isClosed());
+    }
+}
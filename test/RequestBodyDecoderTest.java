@@ -0,0 +1,133 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+// Chunked bodies with extensions and trailers, bodies arriving in pieces, and the body size limit
+class RequestBodyDecoderTest {
+    private static final String CHUNKED = "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n";
+    // form pairs cut across chunks, a chunk extension with and without a value, whitespace before
+    // an extension, an extension on the last chunk and two trailer fields
+    private static final String CHUNKED_BODY = "7;name=value\r\nname=ab\r\n"
+            + "5 ; flag\r\nc&x=1\r\n"
+            + "A\r\n&empty&y=z\r\n"
+            + "0;last\r\n"
+            + "Trailer-One: 1\r\n"
+            + "Trailer-Two: 2\r\n"
+            + "\r\n";
+    private static final Map<String, String> CHUNKED_PARAMETERS = Map.of("name", "abc", "x", "1", "empty", "", "y", "z");
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static HTTPRequest request(String header) {
+        HTTPRequestParser parser = new HTTPRequestParser();
+        assertTrue(parser.parse(bytes(header)));
+        return parser.getRequest();
+    }
+
+    @Test
+    void chunkedWithExtensionsAndTrailers() {
+        HTTPRequest request = request(CHUNKED);
+        RequestBodyDecoder decoder = new RequestBodyDecoder(request, 1024);
+        ByteBuffer buffer = bytes(CHUNKED_BODY + "GET /next HTTP/1.1\r\n\r\n");
+        assertTrue(decoder.feed(buffer));
+        assertTrue(decoder.isComplete());
+        assertEquals(CHUNKED_PARAMETERS, request.getParameters());
+        // the pipelined request behind the body is left in the buffer
+        assertEquals("GET /next HTTP/1.1\r\n\r\n", StandardCharsets.ISO_8859_1.decode(buffer).toString());
+    }
+
+    @Test
+    void chunkedSplitAtEveryByte() {
+        HTTPRequest request = request(CHUNKED);
+        RequestBodyDecoder decoder = new RequestBodyDecoder(request, 1024);
+        byte[] body = CHUNKED_BODY.getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < body.length - 1; i++) {
+            assertFalse(decoder.feed(ByteBuffer.wrap(body, i, 1)));
+        }
+        assertTrue(decoder.feed(ByteBuffer.wrap(body, body.length - 1, 1)));
+        assertEquals(CHUNKED_PARAMETERS, request.getParameters());
+    }
+
+    @Test
+    void chunkedSplitAtEveryPoint() {
+        byte[] body = CHUNKED_BODY.getBytes(StandardCharsets.ISO_8859_1);
+        for (int split = 1; split < body.length; split++) {
+            HTTPRequest request = request(CHUNKED);
+            RequestBodyDecoder decoder = new RequestBodyDecoder(request, 1024);
+            assertFalse(decoder.feed(ByteBuffer.wrap(body, 0, split)));
+            assertTrue(decoder.feed(ByteBuffer.wrap(body, split, body.length - split)));
+            assertEquals(CHUNKED_PARAMETERS, request.getParameters());
+        }
+    }
+
+    @Test
+    void lastChunkWithoutTrailers() {
+        HTTPRequest request = request(CHUNKED);
+        assertTrue(new RequestBodyDecoder(request, 1024).feed(bytes("3\r\na=b\r\n0\r\n\r\n")));
+        assertEquals(Map.of("a", "b"), request.getParameters());
+    }
+
+    @Test
+    void contentLengthBody() {
+        HTTPRequest request = request("POST / HTTP/1.1\r\nContent-Length: 7\r\n\r\n");
+        assertTrue(RequestBodyDecoder.hasBody(request));
+        RequestBodyDecoder decoder = new RequestBodyDecoder(request, 1024);
+        assertFalse(decoder.feed(bytes("a=1")));
+        ByteBuffer rest = bytes("&b=2GET");
+        assertTrue(decoder.feed(rest));
+        assertEquals(Map.of("a", "1", "b", "2"), request.getParameters());
+        assertEquals(3, rest.remaining());
+    }
+
+    @Test
+    void noBody() {
+        HTTPRequest request = request("GET /?q=1 HTTP/1.1\r\n\r\n");
+        assertFalse(RequestBodyDecoder.hasBody(request));
+        assertTrue(new RequestBodyDecoder(request, 1024).isComplete());
+        assertTrue(RequestBodyDecoder.hasBody(request(CHUNKED)));
+    }
+
+    @Test
+    void longPair() {
+        HTTPRequest request = request(CHUNKED);
+        String value = "v".repeat(1000);
+        assertTrue(new RequestBodyDecoder(request, 4096).feed(bytes("3ed\r\nkey=" + value + "&\r\n0\r\n\r\n")));
+        assertEquals(value, request.getParameters().get("key"));
+    }
+
+    @Test
+    void declaredLengthTooLarge() {
+        HTTPRequest request = request("POST / HTTP/1.1\r\nContent-Length: 2000\r\n\r\n");
+        assertThrows(RequestBodyDecoder.BodyTooLargeException.class, () -> new RequestBodyDecoder(request, 1024));
+    }
+
+    @Test
+    void chunksTooLarge() {
+        // refused at the chunk size line that crosses the limit, before its data arrives
+        RequestBodyDecoder decoder = new RequestBodyDecoder(request(CHUNKED), 1024);
+        assertFalse(decoder.feed(bytes("200\r\n" + "a".repeat(512) + "\r\n")));
+        assertThrows(RequestBodyDecoder.BodyTooLargeException.class, () -> decoder.feed(bytes("201\r\n")));
+    }
+
+    @Test
+    void chunkSizeWithTooManyDigits() {
+        RequestBodyDecoder decoder = new RequestBodyDecoder(request(CHUNKED), Long.MAX_VALUE);
+        assertThrows(RequestBodyDecoder.BodyTooLargeException.class, () -> decoder.feed(bytes("0000000000000001")));
+    }
+
+    @Test
+    void malformedChunks() {
+        for (String body : new String[] {"z\r\n", ";ext\r\n", "\r\n", "3x\r\nabc\r\n", "3\r\nabcd\r\n"}) {
+            RequestBodyDecoder decoder = new RequestBodyDecoder(request(CHUNKED), 1024);
+            assertThrows(IllegalArgumentException.class, () -> decoder.feed(bytes(body)), body);
+        }
+    }
+}